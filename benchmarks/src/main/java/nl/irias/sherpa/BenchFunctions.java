@@ -0,0 +1,64 @@
+package nl.irias.sherpa;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SherpaSection(title = "Benchmark")
+public class BenchFunctions {
+	public static class Record {
+		public long id;
+		public String name;
+		public double amount;
+		public List<String> tags;
+
+		public Record() {
+		}
+
+		public Record(long id) {
+			this.id = id;
+			this.name = "record " + id;
+			this.amount = id * 1.25;
+			this.tags = new ArrayList<>();
+			this.tags.add("a");
+			this.tags.add("tag" + (id % 10));
+		}
+	}
+
+	static List<Record> makeRecords(int n) {
+		List<Record> l = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			l.add(new Record(i));
+		}
+		return l;
+	}
+
+	@SherpaFunction
+	public static int echo(List<Record> records) {
+		return records.size();
+	}
+
+	@SherpaFunction
+	public static List<Record> records(int n) {
+		return makeRecords(n);
+	}
+
+	@SherpaFunction
+	public static int sum1(int a) {
+		return a;
+	}
+
+	@SherpaFunction
+	public static int sum4(int a, int b, int c, int d) {
+		return a + b + c + d;
+	}
+
+	@SherpaFunction
+	public static int sum8(int a, int b, int c, int d, int e, int f, int g, int h) {
+		return a + b + c + d + e + f + g + h;
+	}
+
+	@SherpaFunction
+	public static int fail(int a) throws SherpaException {
+		throw new SherpaUserException("benchmarkError", "failing on purpose");
+	}
+}
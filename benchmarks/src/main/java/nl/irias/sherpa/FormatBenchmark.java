@@ -0,0 +1,99 @@
+package nl.irias.sherpa;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// FormatBenchmark compares the wire formats on the same payloads: decoding and binding the request, serializing the result, and complete calls through doPost.
+// Request and response sizes per format are printed during setup.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+	@Param({"1", "100", "10000"})
+	public int records;
+
+	@Param({"application/json", "application/cbor", "application/x-jackson-smile"})
+	public String format;
+
+	SherpaServlet servlet;
+	WireFormat wire;
+	byte[] echoBody;
+	byte[] recordsBody;
+	List<BenchFunctions.Record> result;
+	Map<String, String> headers;
+
+	@Setup
+	public void setup() throws Exception {
+		servlet = new SherpaServlet("/bench/", "bench", "Benchmark", "0", new Class<?>[]{BenchFunctions.class}, null, null, null, null);
+		wire = servlet.formats.get(format);
+		if (wire == null) {
+			throw new IllegalStateException("format " + format + " not available, is its jackson dataformat module on the classpath?");
+		}
+
+		result = BenchFunctions.makeRecords(records);
+		echoBody = encode(new SherpaRequest(new Object[]{result}));
+		recordsBody = encode(new SherpaRequest(new Object[]{records}));
+
+		headers = new HashMap<>();
+		headers.put("host", "localhost");
+		headers.put("accept", format);
+
+		System.out.printf("%n%s, %d records: request %d bytes, response %d bytes%n", format, records, echoBody.length, respondResult());
+	}
+
+	byte[] encode(Object v) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		wire.write(out, servlet.mapper.writer(), v);
+		return out.toByteArray();
+	}
+
+	long post(String path, byte[] body) throws Exception {
+		Mocks.NullOutputStream out = new Mocks.NullOutputStream();
+		servlet.doPost(Mocks.request("POST", path, body, format, headers, Collections.emptyMap()), Mocks.response(out));
+		return out.count;
+	}
+
+	@Benchmark
+	public Object[] bindRecords() throws Exception {
+		return servlet.readParams(wire, new ByteArrayInputStream(echoBody), servlet.endpoints.get("/echo").readers);
+	}
+
+	@Benchmark
+	public long respondResult() throws Exception {
+		Mocks.NullOutputStream out = new Mocks.NullOutputStream();
+		servlet.respondResult(Mocks.response(out), null, wire, result, servlet.endpoints.get("/records").writer);
+		return out.count;
+	}
+
+	// large request, tiny response.
+	@Benchmark
+	public long postEcho() throws Exception {
+		return post("/echo", echoBody);
+	}
+
+	// tiny request, large response.
+	@Benchmark
+	public long postRecords() throws Exception {
+		return post("/records", recordsBody);
+	}
+}
@@ -0,0 +1,132 @@
+package nl.irias.sherpa;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+// Mocks creates minimal HttpServletRequest/HttpServletResponse objects through dynamic proxies.
+// Only the methods used by SherpaServlet return something meaningful, the rest return null/false/0.
+final class Mocks {
+	private Mocks() {
+	}
+
+	// NullOutputStream discards everything, but counts the bytes so the benchmark can consume them.
+	static class NullOutputStream extends ServletOutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] buf, int off, int len) {
+			count += len;
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener l) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	static class BytesInputStream extends ServletInputStream {
+		final ByteArrayInputStream in;
+
+		BytesInputStream(byte[] buf) {
+			in = new ByteArrayInputStream(buf);
+		}
+
+		@Override
+		public int read() {
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) {
+			return in.read(buf, off, len);
+		}
+
+		@Override
+		public boolean isFinished() {
+			return in.available() == 0;
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public void setReadListener(ReadListener l) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	static HttpServletRequest request(String method, String pathInfo, byte[] body, String contentType, Map<String, String> headers, Map<String, String> parameters) {
+		return (HttpServletRequest)Proxy.newProxyInstance(Mocks.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class}, (proxy, m, args) -> {
+			switch (m.getName()) {
+			case "getMethod":
+				return method;
+			case "getPathInfo":
+				return pathInfo;
+			case "getContentType":
+				return contentType;
+			case "getContentLength":
+				return body == null ? -1 : body.length;
+			case "getContentLengthLong":
+				return body == null ? -1L : (long)body.length;
+			case "getInputStream":
+				return new BytesInputStream(body == null ? new byte[0] : body);
+			case "getHeader":
+				return headers.get(((String)args[0]).toLowerCase());
+			case "getHeaders":
+				String v = headers.get(((String)args[0]).toLowerCase());
+				return Collections.enumeration(v == null ? Collections.<String>emptyList() : Collections.singletonList(v));
+			case "getParameter":
+				return parameters.get((String)args[0]);
+			case "getRemoteAddr":
+				return "127.0.0.1";
+			default:
+				return defaultValue(m.getReturnType());
+			}
+		});
+	}
+
+	static HttpServletResponse response(ServletOutputStream out) {
+		return (HttpServletResponse)Proxy.newProxyInstance(Mocks.class.getClassLoader(), new Class<?>[]{HttpServletResponse.class}, (proxy, m, args) -> {
+			switch (m.getName()) {
+			case "getOutputStream":
+				return out;
+			default:
+				return defaultValue(m.getReturnType());
+			}
+		});
+	}
+
+	static Object defaultValue(Class<?> t) {
+		if (t == boolean.class) {
+			return false;
+		}
+		if (t == int.class) {
+			return 0;
+		}
+		if (t == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+}
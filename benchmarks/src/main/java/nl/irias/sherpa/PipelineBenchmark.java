@@ -0,0 +1,91 @@
+package nl.irias.sherpa;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// PipelineBenchmark measures complete calls through doPost and doGet (JSONP), against mock request/response objects.
+// Run with "-prof gc" to see the allocation rate per call.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+	@Param({"1", "100", "10000"})
+	public int records;
+
+	SherpaServlet servlet;
+	byte[] echoBody;
+	byte[] recordsBody;
+	byte[] failBody;
+	Map<String, String> headers;
+	Map<String, String> jsonpParameters;
+
+	@Setup
+	public void setup() throws Exception {
+		servlet = new SherpaServlet("/bench/", "bench", "Benchmark", "0", new Class<?>[]{BenchFunctions.class}, null, null, null, null);
+
+		ObjectMapper mapper = new ObjectMapper();
+		echoBody = mapper.writeValueAsBytes(new SherpaRequest(new Object[]{BenchFunctions.makeRecords(records)}));
+		recordsBody = mapper.writeValueAsBytes(new SherpaRequest(new Object[]{records}));
+		failBody = mapper.writeValueAsBytes(new SherpaRequest(new Object[]{records}));
+
+		headers = new HashMap<>();
+		headers.put("host", "localhost");
+		jsonpParameters = new HashMap<>();
+		jsonpParameters.put("callback", "handle");
+		jsonpParameters.put("body", new String(recordsBody, "UTF-8"));
+	}
+
+	long post(String path, byte[] body) throws Exception {
+		Mocks.NullOutputStream out = new Mocks.NullOutputStream();
+		servlet.doPost(Mocks.request("POST", path, body, "application/json", headers, Collections.emptyMap()), Mocks.response(out));
+		return out.count;
+	}
+
+	// large request, tiny response.
+	@Benchmark
+	public long postEcho() throws Exception {
+		return post("/echo", echoBody);
+	}
+
+	// tiny request, large response.
+	@Benchmark
+	public long postRecords() throws Exception {
+		return post("/records", recordsBody);
+	}
+
+	@Benchmark
+	public long postUserError() throws Exception {
+		return post("/fail", failBody);
+	}
+
+	@Benchmark
+	public long postBadFunction() throws Exception {
+		return post("/nonexistent", failBody);
+	}
+
+	@Benchmark
+	public long getJsonp() throws Exception {
+		Mocks.NullOutputStream out = new Mocks.NullOutputStream();
+		servlet.doGet(Mocks.request("GET", "/records", null, null, headers, jsonpParameters), Mocks.response(out));
+		return out.count;
+	}
+}
@@ -0,0 +1,115 @@
+package nl.irias.sherpa;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// StageBenchmark measures the stages of a call in isolation: parsing the request, binding parameters, invoking the function and serializing the response.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StageBenchmark {
+	static SherpaServlet newServlet() throws Exception {
+		return new SherpaServlet("/bench/", "bench", "Benchmark", "0", new Class<?>[]{BenchFunctions.class}, null, null, null, null);
+	}
+
+	@State(Scope.Benchmark)
+	public static class Payload {
+		@Param({"1", "100", "10000"})
+		public int records;
+
+		SherpaServlet servlet;
+		byte[] body;
+		List<BenchFunctions.Record> result;
+
+		@Setup
+		public void setup() throws Exception {
+			servlet = newServlet();
+			body = new ObjectMapper().writeValueAsBytes(new SherpaRequest(new Object[]{BenchFunctions.makeRecords(records)}));
+			result = BenchFunctions.makeRecords(records);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Arity {
+		@Param({"1", "4", "8"})
+		public int params;
+
+		SherpaServlet servlet;
+		String name;
+		byte[] body;
+		Object[] values;
+
+		@Setup
+		public void setup() throws Exception {
+			servlet = newServlet();
+			name = "sum" + params;
+			values = new Object[params];
+			for (int i = 0; i < params; i++) {
+				values[i] = i;
+			}
+			body = new ObjectMapper().writeValueAsBytes(new SherpaRequest(values));
+		}
+	}
+
+	// only tokenizing the request, as a baseline for binding.
+	@Benchmark
+	public int parse(Payload p) throws IOException {
+		int n = 0;
+		try (JsonParser parser = p.servlet.mapper.getFactory().createParser(p.body)) {
+			while (parser.nextToken() != null) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	@Benchmark
+	public Object[] bindRecords(Payload p) throws Exception {
+		return p.servlet.readParams(p.servlet.json, new ByteArrayInputStream(p.body), p.servlet.endpoints.get("/echo").readers);
+	}
+
+	@Benchmark
+	public Object[] bindArity(Arity a) throws Exception {
+		return a.servlet.readParams(a.servlet.json, new ByteArrayInputStream(a.body), a.servlet.endpoints.get("/" + a.name).readers);
+	}
+
+	@Benchmark
+	public Object invoke(Arity a) throws Exception {
+		return a.servlet.endpoints.get("/" + a.name).invoker.invoke(a.values);
+	}
+
+	@Benchmark
+	public long respondResult(Payload p) throws IOException {
+		Mocks.NullOutputStream out = new Mocks.NullOutputStream();
+		p.servlet.respondResult(Mocks.response(out), null, p.servlet.json, p.result, p.servlet.endpoints.get("/records").writer);
+		return out.count;
+	}
+
+	@Benchmark
+	public long respondError(Payload p) throws IOException {
+		Mocks.NullOutputStream out = new Mocks.NullOutputStream();
+		p.servlet.respond(Mocks.response(out), null, p.servlet.json, new SherpaResponse(null, new SherpaError("benchmarkError", "failing on purpose")), HttpServletResponse.SC_OK);
+		return out.count;
+	}
+}
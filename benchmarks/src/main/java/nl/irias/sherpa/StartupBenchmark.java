@@ -0,0 +1,34 @@
+package nl.irias.sherpa;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// StartupBenchmark measures constructing the servlet in a fresh JVM, as when an instance starts: with the functions registered
+// through the dispatcher that SherpaProcessor generated for BenchFunctions, or found through reflection.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(20)
+public class StartupBenchmark {
+	@Param({"true", "false"})
+	public boolean generated;
+
+	@Benchmark
+	public SherpaServlet construct() throws Exception {
+		SherpaOptions options = new SherpaOptions();
+		options.generatedDispatchers = generated;
+		return new SherpaServlet("/bench/", "bench", "Benchmark", "0", new Class<?>[]{BenchFunctions.class}, null, null, null, null, null, options);
+	}
+}
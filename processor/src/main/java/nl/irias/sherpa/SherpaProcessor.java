@@ -0,0 +1,363 @@
+package nl.irias.sherpa;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// SherpaProcessor generates a SherpaDispatcher for each class annotated with @SherpaSection, so SherpaServlet registers and calls its functions without reflection.
+// It also writes the documentation of the sections, from their javadoc comments, as sherpadoc.json, for the SherpaDoc parameter of SherpaServlet.
+// Mistakes that SherpaServlet would report at startup, like non-static functions, are compile errors.
+// Options, passed to javac as -Aname=value:
+// - sherpa.doc: path of the documentation, relative to the class output directory, so it ends up in the jar. Default "sherpadoc.json".
+// - sherpa.sections: section class names to document, separated by ":". The first is the top-level section, the others are its subsections, in this order. Default all sections.
+@SupportedAnnotationTypes({"nl.irias.sherpa.SherpaSection", "nl.irias.sherpa.SherpaFunction"})
+@SupportedOptions({"sherpa.doc", "sherpa.sections"})
+public class SherpaProcessor extends AbstractProcessor {
+	Map<String, SherpaDoc> docs = new LinkedHashMap<>(); // by section name, in order of processing
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+		for (Element e : round.getElementsAnnotatedWith(SherpaSection.class)) {
+			if (e.getKind() == ElementKind.CLASS) {
+				section((TypeElement)e);
+			} else {
+				error(e, "Section must be a class.");
+			}
+		}
+		if (round.processingOver()) {
+			writeDoc();
+		}
+		return true;
+	}
+
+	private void error(Element e, String msg) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, msg, e);
+	}
+
+	// sectionName returns the name of the class without package, e.g. "Outer.Inner".
+	private String sectionName(TypeElement c) {
+		String pkg = processingEnv.getElementUtils().getPackageOf(c).getQualifiedName().toString();
+		String name = c.getQualifiedName().toString();
+		return pkg.isEmpty() ? name : name.substring(pkg.length()+1);
+	}
+
+	private void section(TypeElement c) {
+		for (Element e = c; e.getKind().isClass(); e = e.getEnclosingElement()) {
+			if (e.getModifiers().contains(Modifier.PRIVATE)) {
+				error(c, "Section must not be private, the generated dispatcher calls its functions directly.");
+				return;
+			}
+		}
+
+		String name = sectionName(c);
+		SherpaDoc doc = new SherpaDoc(name, c.getAnnotation(SherpaSection.class).title(), commentText(c));
+		StringBuilder b = new StringBuilder();
+		Set<String> names = new HashSet<>();
+		boolean ok = true;
+		for (Element e : c.getEnclosedElements()) {
+			SherpaFunction fn = e.getAnnotation(SherpaFunction.class);
+			if (e.getKind() != ElementKind.METHOD || fn == null) {
+				continue;
+			}
+			ExecutableElement m = (ExecutableElement)e;
+			String fname = m.getSimpleName().toString();
+			if (!m.getModifiers().contains(Modifier.STATIC)) {
+				error(m, String.format("Function %s must be static if you want to export it as Sherpa function.", fname));
+				ok = false;
+				continue;
+			}
+			if (m.getModifiers().contains(Modifier.PRIVATE)) {
+				error(m, String.format("Function %s must not be private.", fname));
+				ok = false;
+				continue;
+			}
+			if (!names.add(fname)) {
+				error(m, String.format("Duplicate function name %s.", fname));
+				ok = false;
+				continue;
+			}
+			ok = function(b, c, m, fn) && ok;
+			doc.functions.add(new SherpaFunctionDoc(fname, synopsis(m, fn) + "\n" + commentText(m)));
+		}
+		if (!ok) {
+			return;
+		}
+
+		String pkg = processingEnv.getElementUtils().getPackageOf(c).getQualifiedName().toString();
+		String dispatcher = processingEnv.getElementUtils().getBinaryName(c).toString().substring(pkg.isEmpty() ? 0 : pkg.length()+1).replace('$', '_') + "_SherpaDispatcher";
+		StringBuilder src = new StringBuilder();
+		src.append("// Generated by nl.irias.sherpa.SherpaProcessor from ").append(c.getQualifiedName()).append(", do not edit.\n");
+		if (!pkg.isEmpty()) {
+			src.append("package ").append(pkg).append(";\n");
+		}
+		src.append("\n");
+		src.append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+		src.append("public final class ").append(dispatcher).append(" extends nl.irias.sherpa.SherpaDispatcher {\n");
+		src.append("\t@Override\n");
+		src.append("\tpublic java.util.List<Function> functions() {\n");
+		src.append("\t\tjava.util.List<Function> l = new java.util.ArrayList<>();\n");
+		src.append("\t\tFunction f;\n");
+		src.append(b);
+		src.append("\n");
+		src.append("\t\treturn l;\n");
+		src.append("\t}\n");
+		src.append("}\n");
+		try {
+			JavaFileObject f = processingEnv.getFiler().createSourceFile(pkg.isEmpty() ? dispatcher : pkg + "." + dispatcher, c);
+			try (Writer w = f.openWriter()) {
+				w.write(src.toString());
+			}
+		} catch (IOException ex) {
+			error(c, "Writing dispatcher: " + ex);
+			return;
+		}
+		docs.put(name, doc);
+	}
+
+	// function appends the code registering function m to b, and returns whether it could.
+	private boolean function(StringBuilder b, TypeElement c, ExecutableElement m, SherpaFunction fn) {
+		String name = m.getSimpleName().toString();
+		List<String> types = new ArrayList<>();
+		for (VariableElement p : m.getParameters()) {
+			types.add(typeExpr(p.asType()));
+		}
+		b.append("\n");
+		b.append("\t\tf = new Function(\"").append(name).append("\", new java.lang.reflect.Type[]{").append(String.join(", ", types)).append("}, ");
+		b.append(typeExpr(m.getReturnType())).append(", ").append(invoker(c, m)).append(");\n");
+
+		// only settings that differ from the default, the fields have the same defaults as the annotation.
+		for (AnnotationMirror am : m.getAnnotationMirrors()) {
+			if (!((TypeElement)am.getAnnotationType().asElement()).getQualifiedName().contentEquals(SherpaFunction.class.getName())) {
+				continue;
+			}
+			for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> kv : am.getElementValues().entrySet()) {
+				String k = kv.getKey().getSimpleName().toString();
+				if (!k.equals("synopsis") && !k.equals("httpVersion")) {
+					b.append("\t\tf.").append(k).append(" = ").append(literal(kv.getValue().getValue())).append(";\n");
+				}
+			}
+		}
+
+		// like the servlet, httpVersion is ignored without httpMaxAge.
+		if (fn.httpMaxAge() > 0 && !fn.httpVersion().equals("")) {
+			ExecutableElement vm = versionMethod(c, m, fn.httpVersion());
+			if (vm == null) {
+				error(m, String.format("Version function %s for function %s not found, it must have the same parameters.", fn.httpVersion(), name));
+				return false;
+			}
+			if (!vm.getModifiers().contains(Modifier.STATIC) || vm.getModifiers().contains(Modifier.PRIVATE)) {
+				error(m, String.format("Version function %s for function %s must be static and not private.", fn.httpVersion(), name));
+				return false;
+			}
+			b.append("\t\tf.version = ").append(invoker(c, vm)).append(";\n");
+		}
+		b.append("\t\tl.add(f);\n");
+		return true;
+	}
+
+	// versionMethod returns the method "name" in c with the same parameters as m, or null.
+	private ExecutableElement versionMethod(TypeElement c, ExecutableElement m, String name) {
+		outer:
+		for (Element e : c.getEnclosedElements()) {
+			if (e.getKind() != ElementKind.METHOD || !e.getSimpleName().contentEquals(name)) {
+				continue;
+			}
+			ExecutableElement vm = (ExecutableElement)e;
+			if (vm.getParameters().size() != m.getParameters().size()) {
+				continue;
+			}
+			for (int i = 0; i < vm.getParameters().size(); i++) {
+				TypeMirror a = processingEnv.getTypeUtils().erasure(vm.getParameters().get(i).asType());
+				TypeMirror z = processingEnv.getTypeUtils().erasure(m.getParameters().get(i).asType());
+				if (!processingEnv.getTypeUtils().isSameType(a, z)) {
+					continue outer;
+				}
+			}
+			return vm;
+		}
+		return null;
+	}
+
+	// invoker returns a lambda calling static method m of c directly, with the parameters cast to its types.
+	private String invoker(TypeElement c, ExecutableElement m) {
+		List<String> args = new ArrayList<>();
+		for (int i = 0; i < m.getParameters().size(); i++) {
+			String t = castType(m.getParameters().get(i).asType());
+			args.add(t.equals("java.lang.Object") ? "p[" + i + "]" : "(" + t + ")p[" + i + "]");
+		}
+		String call = c.getQualifiedName() + "." + m.getSimpleName() + "(" + String.join(", ", args) + ")";
+		if (m.getReturnType().getKind() == TypeKind.VOID) {
+			return "(java.lang.Object[] p) -> { " + call + "; return null; }";
+		}
+		return "(java.lang.Object[] p) -> " + call;
+	}
+
+	// castType returns the type to cast a parameter to: boxed for primitives, and erased if it refers to type variables of the method.
+	private String castType(TypeMirror t) {
+		if (t.getKind().isPrimitive()) {
+			return processingEnv.getTypeUtils().boxedClass((PrimitiveType)t).getQualifiedName().toString();
+		}
+		if (hasTypeVariables(t)) {
+			return processingEnv.getTypeUtils().erasure(t).toString();
+		}
+		return t.toString();
+	}
+
+	// typeExpr returns an expression for the java.lang.reflect.Type of t, with type arguments, resolved through a TypeReference.
+	// types with type variables of the method are erased, as reflection on the method would resolve them to their bounds too.
+	private String typeExpr(TypeMirror t) {
+		if (hasTypeArguments(t) && !hasTypeVariables(t)) {
+			return "new com.fasterxml.jackson.core.type.TypeReference<" + t + ">(){}.getType()";
+		}
+		return processingEnv.getTypeUtils().erasure(t) + ".class";
+	}
+
+	private static boolean hasTypeArguments(TypeMirror t) {
+		switch (t.getKind()) {
+		case ARRAY:
+			return hasTypeArguments(((ArrayType)t).getComponentType());
+		case DECLARED:
+			return !((DeclaredType)t).getTypeArguments().isEmpty();
+		default:
+			return false;
+		}
+	}
+
+	private static boolean hasTypeVariables(TypeMirror t) {
+		switch (t.getKind()) {
+		case TYPEVAR:
+			return true;
+		case ARRAY:
+			return hasTypeVariables(((ArrayType)t).getComponentType());
+		case WILDCARD:
+			WildcardType w = (WildcardType)t;
+			return w.getExtendsBound() != null && hasTypeVariables(w.getExtendsBound()) || w.getSuperBound() != null && hasTypeVariables(w.getSuperBound());
+		case DECLARED:
+			for (TypeMirror a : ((DeclaredType)t).getTypeArguments()) {
+				if (hasTypeVariables(a)) {
+					return true;
+				}
+			}
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	private static String literal(Object v) {
+		if (v instanceof Long) {
+			return v + "L";
+		}
+		if (v instanceof Float) {
+			return v + "f";
+		}
+		return String.valueOf(v);
+	}
+
+	private static String synopsis(ExecutableElement m, SherpaFunction fn) {
+		if (!fn.synopsis().equals("")) {
+			return fn.synopsis();
+		}
+		String name = m.getSimpleName().toString();
+		List<String> params = new ArrayList<>();
+		for (VariableElement p : m.getParameters()) {
+			params.add(p.getSimpleName() + " " + SherpaDocHelper.friendlyName(p.asType().toString()));
+		}
+		String synopsis = String.format("%s(%s)", name, String.join(", ", params));
+		String returnType = SherpaDocHelper.friendlyName(m.getReturnType().toString());
+		// functions returning a CompletionStage respond with the value it completes with
+		Matcher mm = Pattern.compile("^(?:CompletionStage|CompletableFuture)<(.*)>$").matcher(returnType);
+		if (mm.matches()) {
+			returnType = SherpaDocHelper.friendlyName(mm.group(1));
+		}
+		if (!returnType.equals("void")) {
+			synopsis += ": " + returnType;
+		}
+		return synopsis;
+	}
+
+	// commentText returns the javadoc comment of e without the block tags like @param, or an empty string.
+	private String commentText(Element e) {
+		String s = processingEnv.getElementUtils().getDocComment(e);
+		if (s == null) {
+			return "";
+		}
+		StringBuilder b = new StringBuilder();
+		for (String line : s.split("\n", -1)) {
+			if (line.trim().startsWith("@")) {
+				break;
+			}
+			b.append(line.startsWith(" ") ? line.substring(1) : line).append("\n");
+		}
+		return b.toString().trim();
+	}
+
+	private void writeDoc() {
+		String path = processingEnv.getOptions().getOrDefault("sherpa.doc", "sherpadoc.json");
+		String sections = processingEnv.getOptions().get("sherpa.sections");
+		List<SherpaDoc> l = new ArrayList<>();
+		if (sections == null) {
+			l.addAll(docs.values());
+		} else {
+			for (String name : Arrays.asList(sections.split("[:]"))) {
+				if (docs.containsKey(name)) {
+					l.add(docs.get(name));
+				}
+			}
+		}
+		if (l.isEmpty()) {
+			return;
+		}
+
+		SherpaDoc root = l.get(0);
+		root.sections.addAll(l.subList(1, l.size()));
+		try {
+			FileObject f = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", path);
+			try (OutputStream out = f.openOutputStream()) {
+				new ObjectMapper().writeValue(out, root);
+			}
+		} catch (IOException ex) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Writing " + path + ": " + ex);
+		}
+	}
+}
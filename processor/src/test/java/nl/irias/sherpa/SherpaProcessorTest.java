@@ -0,0 +1,228 @@
+package nl.irias.sherpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class SherpaProcessorTest {
+	static final String SECTION = String.join("\n",
+		"package example;",
+		"",
+		"import java.util.List;",
+		"import java.util.Map;",
+		"import java.util.concurrent.CompletableFuture;",
+		"import nl.irias.sherpa.SherpaFunction;",
+		"import nl.irias.sherpa.SherpaSection;",
+		"",
+		"/**",
+		" * Functions for testing the processor.",
+		" */",
+		"@SherpaSection(title = \"Example\")",
+		"public class Example {",
+		"\t/**",
+		"\t * Adds a and b.",
+		"\t * @param a first",
+		"\t */",
+		"\t@SherpaFunction(maxConcurrent = 2, timeout = 1000L)",
+		"\tpublic static int add(int a, int b) {",
+		"\t\treturn a + b;",
+		"\t}",
+		"",
+		"\t@SherpaFunction(cacheTtl = 5000, cacheMaxEntries = 10, synopsis = \"count(m): int\")",
+		"\tpublic static int count(List<Map<String, Integer>> m) {",
+		"\t\treturn m.size();",
+		"\t}",
+		"",
+		"\t@SherpaFunction(httpMaxAge = 60, httpPublic = true, httpVersion = \"docVersion\")",
+		"\tpublic static String doc(int id) {",
+		"\t\treturn \"doc\" + id;",
+		"\t}",
+		"",
+		"\tstatic long docVersion(int id) {",
+		"\t\treturn id;",
+		"\t}",
+		"",
+		"\t// httpVersion is ignored without httpMaxAge, by the servlet and the processor.",
+		"\t@SherpaFunction(httpVersion = \"missing\", rateLimit = 2.5, rateBurst = 5)",
+		"\tpublic static CompletableFuture<String[]> later(String s) {",
+		"\t\treturn CompletableFuture.completedFuture(new String[]{s});",
+		"\t}",
+		"",
+		"\t@SherpaFunction(logParameters = false)",
+		"\tpublic static void nothing() {",
+		"\t}",
+		"",
+		"\tpublic static int notExported() {",
+		"\t\treturn 0;",
+		"\t}",
+		"}",
+		"");
+
+	static Path dir;
+	static URLClassLoader loader;
+
+	@BeforeClass
+	public static void compile() throws Exception {
+		dir = Files.createTempDirectory("sherpa-processor-test");
+		Path src = dir.resolve("src/example/Example.java");
+		Files.createDirectories(src.getParent());
+		Files.write(src, SECTION.getBytes(StandardCharsets.UTF_8));
+		Path out = dir.resolve("classes");
+		Files.createDirectories(out);
+
+		// the test classpath may be hidden in a manifest jar, so pass the jars the section and dispatcher need.
+		List<String> cp = new ArrayList<>();
+		for (Class<?> c : new Class<?>[]{SherpaFunction.class, ObjectMapper.class, JsonParser.class, JsonProperty.class}) {
+			cp.add(new File(c.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath());
+		}
+
+		JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+		DiagnosticCollector<JavaFileObject> diags = new DiagnosticCollector<>();
+		try (StandardJavaFileManager fm = javac.getStandardFileManager(diags, null, StandardCharsets.UTF_8)) {
+			List<String> args = Arrays.asList("-d", out.toString(), "-classpath", String.join(File.pathSeparator, cp));
+			JavaCompiler.CompilationTask task = javac.getTask(null, fm, diags, args, null, fm.getJavaFileObjects(src.toFile()));
+			task.setProcessors(Arrays.asList(new SherpaProcessor()));
+			boolean ok = task.call();
+			StringBuilder b = new StringBuilder();
+			for (Diagnostic<? extends JavaFileObject> d : diags.getDiagnostics()) {
+				b.append(d).append('\n');
+			}
+			assertTrue(b.toString(), ok);
+		}
+		loader = new URLClassLoader(new URL[]{out.toUri().toURL()}, SherpaProcessorTest.class.getClassLoader());
+	}
+
+	@AfterClass
+	public static void cleanup() throws IOException {
+		if (loader != null) {
+			loader.close();
+		}
+		if (dir != null) {
+			Files.walk(dir).sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	// reflective returns the functions of the section as the servlet finds them without a generated dispatcher.
+	static List<SherpaDispatcher.Function> reflective(Class<?> c) {
+		List<SherpaDispatcher.Function> l = new ArrayList<>();
+		for (Method m : c.getDeclaredMethods()) {
+			SherpaFunction fn = m.getAnnotation(SherpaFunction.class);
+			if (fn == null) {
+				continue;
+			}
+			SherpaDispatcher.Function f = new SherpaDispatcher.Function(m, fn);
+			if (fn.httpMaxAge() > 0 && !fn.httpVersion().equals("")) {
+				f.version = p -> null;
+			}
+			l.add(f);
+		}
+		return l;
+	}
+
+	static Map<String, SherpaDispatcher.Function> byName(List<SherpaDispatcher.Function> l) {
+		Map<String, SherpaDispatcher.Function> r = new LinkedHashMap<>();
+		for (SherpaDispatcher.Function f : l) {
+			r.put(f.name, f);
+		}
+		return r;
+	}
+
+	static String typeNames(Type[] l) {
+		List<String> r = new ArrayList<>();
+		for (Type t : l) {
+			r.add(t.getTypeName());
+		}
+		return r.toString();
+	}
+
+	@Test
+	public void dispatcher() throws Throwable {
+		Class<?> c = loader.loadClass("example.Example");
+		SherpaDispatcher d = SherpaDispatcher.load(c);
+		assertNotNull(d);
+
+		List<SherpaDispatcher.Function> generated = d.functions();
+		List<String> names = new ArrayList<>();
+		for (SherpaDispatcher.Function f : generated) {
+			names.add(f.name);
+		}
+		// in order of declaration.
+		assertEquals(Arrays.asList("add", "count", "doc", "later", "nothing"), names);
+
+		Map<String, SherpaDispatcher.Function> expect = byName(reflective(c));
+		assertEquals(expect.keySet(), byName(generated).keySet());
+		for (SherpaDispatcher.Function g : generated) {
+			SherpaDispatcher.Function r = expect.get(g.name);
+			assertEquals(g.name, typeNames(r.parameterTypes), typeNames(g.parameterTypes));
+			assertEquals(g.name, r.returnType.getTypeName(), g.returnType.getTypeName());
+			assertNotNull(g.name, g.invoker);
+			for (Field field : SherpaDispatcher.Function.class.getFields()) {
+				if (field.getType() == SherpaDispatcher.Invoker.class || field.getName().equals("name") || field.getName().endsWith("Type") || field.getName().endsWith("Types")) {
+					continue;
+				}
+				assertEquals(g.name + "." + field.getName(), field.get(r), field.get(g));
+			}
+			assertEquals(g.name + ".version", r.version != null, g.version != null);
+		}
+
+		Map<String, SherpaDispatcher.Function> fns = byName(generated);
+		assertEquals(3, fns.get("add").invoker.invoke(new Object[]{1, 2}));
+		assertEquals(1, fns.get("count").invoker.invoke(new Object[]{Arrays.asList(new LinkedHashMap<String, Integer>())}));
+		assertEquals(7L, fns.get("doc").version.invoke(new Object[]{7}));
+		assertNull(fns.get("later").version);
+		assertNull(fns.get("nothing").invoker.invoke(new Object[]{}));
+	}
+
+	@Test
+	public void doc() throws Exception {
+		SherpaDoc doc = new ObjectMapper().readValue(dir.resolve("classes/sherpadoc.json").toFile(), SherpaDoc.class);
+		assertEquals("Example", doc.className);
+		assertEquals("Example", doc.title);
+		assertEquals("Functions for testing the processor.", doc.text);
+		List<String> names = new ArrayList<>();
+		Map<String, String> text = new LinkedHashMap<>();
+		for (SherpaFunctionDoc f : doc.functions) {
+			names.add(f.name);
+			text.put(f.name, f.text);
+		}
+		assertEquals(Arrays.asList("add", "count", "doc", "later", "nothing"), names);
+		// synopsis, then the comment without its block tags.
+		assertEquals("add(a int, b int): int\nAdds a and b.", text.get("add"));
+		assertEquals("count(m): int\n", text.get("count"));
+		assertEquals("doc(id int): string\n", text.get("doc"));
+		assertEquals("later(s string): String[]\n", text.get("later"));
+		assertEquals("nothing()\n", text.get("nothing"));
+	}
+}
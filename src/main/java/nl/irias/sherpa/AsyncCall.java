@@ -0,0 +1,264 @@
+package nl.irias.sherpa;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+// AsyncCall handles a function call in async mode. The request body is read with a ReadListener,
+// the function is called on the servlet's executor, and the response is written with a WriteListener.
+// Either the call or the timeout "claims" the response, the loser is ignored. A call that lost isn't started, or, when it was running already,
+// its result isn't counted or written.
+class AsyncCall implements ReadListener, WriteListener, AsyncListener, Runnable {
+	final SherpaServlet servlet;
+	final AsyncContext ac;
+	final HttpServletResponse response;
+	final Executor executor;
+	final String callback;
+	final WireFormat requestFormat;
+	final WireFormat responseFormat;
+	final Endpoint endpoint;
+	final String name;
+	final ServletInputStream in;
+	final ByteArrayOutputStream body = new ByteArrayOutputStream();
+	final AtomicBoolean claimed = new AtomicBoolean();
+	final AtomicBoolean completed = new AtomicBoolean();
+	volatile boolean called; // the call, not the timeout, claimed the response
+
+	// for writing the response.
+	ServletOutputStream out;
+	byte[] data;
+	int written;
+
+	// in is null for GET requests, the body must then already be in "body".
+	AsyncCall(SherpaServlet servlet, AsyncContext ac, HttpServletResponse response, Executor executor, String callback, WireFormat requestFormat, WireFormat responseFormat, Endpoint endpoint, ServletInputStream in, byte[] body) {
+		this.servlet = servlet;
+		this.ac = ac;
+		this.response = response;
+		this.executor = executor;
+		this.callback = callback;
+		this.requestFormat = requestFormat;
+		this.responseFormat = responseFormat;
+		this.endpoint = endpoint;
+		this.name = endpoint.name;
+		this.in = in;
+		if (body != null) {
+			this.body.write(body, 0, body.length);
+		}
+	}
+
+	// timeout in milliseconds, zero for no timeout.
+	void start(long timeout) {
+		ac.setTimeout(timeout);
+		ac.addListener(this);
+		if (in != null) {
+			in.setReadListener(this);
+		} else {
+			submit();
+		}
+	}
+
+	private boolean claim() {
+		return claimed.compareAndSet(false, true);
+	}
+
+	// claimCall claims the response for the call. it also returns true if the call claimed it earlier, e.g. in SherpaServlet.finish through BufferedResponse.claim.
+	private boolean claimCall() {
+		if (claim()) {
+			called = true;
+		}
+		return called;
+	}
+
+	private void complete() {
+		if (completed.compareAndSet(false, true)) {
+			ac.complete();
+		}
+	}
+
+	private void submit() {
+		try {
+			executor.execute(this);
+		} catch (RejectedExecutionException e) {
+			if (claim()) {
+				servlet.metrics.rejected(endpoint.metrics);
+				fail(servlet.SHERPA_OVERLOADED, "server too busy, no thread available to call function", HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			}
+		}
+	}
+
+	private void fail(String code, String message, int status) {
+		try {
+			servlet.respond(response, callback, responseFormat, new SherpaResponse(null, new SherpaError(code, message)), status);
+		} catch (IOException e) {
+			SherpaServlet.logger.log(Level.FINE, "writing error response", e);
+		}
+		complete();
+	}
+
+	@Override
+	public void onDataAvailable() throws IOException {
+		int max = endpoint.maxRequestBytes;
+		byte[] buf = new byte[4096];
+		while (in.isReady() && !claimed.get()) {
+			int n = in.read(buf);
+			if (n < 0) {
+				break;
+			}
+			body.write(buf, 0, n);
+			// a chunked request without Content-Length can still be too large, we stop reading.
+			if (max > 0 && body.size() > max && claim()) {
+				servlet.tooLarge(response, callback, responseFormat, endpoint, body.size());
+				complete();
+			}
+		}
+	}
+
+	@Override
+	public void onAllDataRead() {
+		if (!claimed.get()) {
+			submit();
+		}
+	}
+
+	@Override
+	public void run() {
+		// timed out while waiting for a thread.
+		if (claimed.get()) {
+			return;
+		}
+		if (endpoint.stream) {
+			stream();
+			return;
+		}
+
+		BufferedResponse br = new BufferedResponse(response);
+		br.claimer = this::claimCall;
+		CompletableFuture<Void> pending;
+		try {
+			HttpServletRequest request = (HttpServletRequest)ac.getRequest();
+			pending = servlet.call(request, servlet.client(request), br, callback, requestFormat, responseFormat, endpoint, new ByteArrayInputStream(body.toByteArray()));
+		} catch (Exception e) {
+			failed(e);
+			return;
+		}
+		if (pending == null) {
+			write(br);
+			return;
+		}
+		// function returned a CompletionStage, we write the response when it completes.
+		pending.whenComplete((Void v, Throwable t) -> {
+			if (t != null) {
+				failed(t);
+			} else {
+				write(br);
+			}
+		});
+	}
+
+	// stream calls a function with a streaming result, writing directly to the response with blocking IO instead of buffering the result.
+	// the response is claimed before the call, so the call cannot time out.
+	private void stream() {
+		if (!claim()) {
+			return;
+		}
+		HttpServletRequest request = (HttpServletRequest)ac.getRequest();
+		HttpServletResponse r = servlet.compressing(request, response, endpoint);
+		try {
+			servlet.call(request, servlet.client(request), r, callback, requestFormat, responseFormat, endpoint, new ByteArrayInputStream(body.toByteArray()));
+			SherpaServlet.finish(r);
+		} catch (Exception e) {
+			SherpaServlet.logger.log(Level.FINE, String.format("streaming result of function %s", name), e);
+		} finally {
+			SherpaServlet.end(r);
+		}
+		complete();
+	}
+
+	private void failed(Throwable t) {
+		if (t instanceof CompletionException && t.getCause() != null) {
+			t = t.getCause();
+		}
+		if (!claimCall()) {
+			// e.g. the request was recycled after the timeout.
+			SherpaServlet.logger.log(Level.FINE, String.format("calling function %s after its timeout", name), t);
+			return;
+		}
+		SherpaServlet.logger.log(Level.SEVERE, String.format("calling function %s", name), t);
+		fail(servlet.SHERPA_SERVER_ERROR, String.format("calling function %s: %s", name, t.getMessage()), HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+	}
+
+	private void write(BufferedResponse br) {
+		if (!claimCall()) {
+			return;
+		}
+		data = br.commitTo(response);
+		try {
+			data = servlet.compress((HttpServletRequest)ac.getRequest(), response, endpoint, data);
+			out = response.getOutputStream();
+			out.setWriteListener(this);
+		} catch (IOException e) {
+			SherpaServlet.logger.log(Level.FINE, "writing response", e);
+			complete();
+		}
+	}
+
+	@Override
+	public void onWritePossible() throws IOException {
+		while (out.isReady()) {
+			if (written == data.length) {
+				complete();
+				return;
+			}
+			int n = Math.min(data.length - written, 16*1024);
+			out.write(data, written, n);
+			written += n;
+		}
+	}
+
+	// for reading the request and writing the response.
+	@Override
+	public void onError(Throwable t) {
+		SherpaServlet.logger.log(Level.FINE, "i/o error in async call", t);
+		claim();
+		complete();
+	}
+
+	@Override
+	public void onTimeout(AsyncEvent event) {
+		if (claim()) {
+			servlet.metrics.timeout(endpoint.metrics);
+			fail(servlet.SHERPA_TIMEOUT, String.format("timeout calling function %s", name), HttpServletResponse.SC_OK);
+		}
+	}
+
+	@Override
+	public void onError(AsyncEvent event) {
+		if (claim()) {
+			complete();
+		}
+	}
+
+	@Override
+	public void onComplete(AsyncEvent event) {
+	}
+
+	@Override
+	public void onStartAsync(AsyncEvent event) {
+	}
+}
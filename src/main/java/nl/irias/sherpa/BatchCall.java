@@ -0,0 +1,173 @@
+package nl.irias.sherpa;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+// BatchCall handles a call to the reserved function "_batch", with a list of calls as request: [{"function": "name", "params": [...]}, ...].
+// Each call is handled like a regular call, so errors and collector events are per function.
+// The response is a list of sherpa responses, in the order of the request. Responses are written as soon as they and the ones before are done.
+// With a concurrency above 1, calls run in parallel on the executor, and on the thread handling the batch.
+// The batch response is always a 200: the status and headers of each call, e.g. Retry-After for a rate limited or overloaded call, are dropped, the error code in the call's response remains.
+class BatchCall {
+	final SherpaServlet servlet;
+	final HttpServletResponse response;
+	final String callback;
+	final String client;
+	final int concurrency;
+	final Executor executor;
+
+	JsonNode[] calls;
+	List<CompletableFuture<byte[]>> results;
+	final AtomicInteger next = new AtomicInteger();
+
+	BatchCall(SherpaServlet servlet, HttpServletResponse response, String callback, String client, int concurrency, Executor executor) {
+		this.servlet = servlet;
+		this.response = response;
+		this.callback = callback;
+		this.client = client;
+		this.concurrency = executor == null ? 1 : concurrency;
+		this.executor = executor;
+	}
+
+	// the batch is parsed in format "in", calls and the response are always json.
+	void run(WireFormat in, InputStream body) throws IOException {
+		String error = parse(in, body);
+		if (error != null) {
+			servlet.collector.sherpaProtocolError();
+			servlet.respond(response, callback, servlet.json, new SherpaResponse(null, new SherpaError(servlet.SHERPA_BAD_REQUEST, error)), HttpServletResponse.SC_OK);
+			return;
+		}
+
+		results = new ArrayList<>(calls.length);
+		for (int i = 0; i < calls.length; i++) {
+			results.add(new CompletableFuture<>());
+		}
+		for (int i = 1; i < Math.min(concurrency, calls.length); i++) {
+			try {
+				executor.execute(this::work);
+			} catch (RejectedExecutionException e) {
+				// we'll do more of the work ourselves.
+				break;
+			}
+		}
+
+		servlet.okHeaders(response, callback, servlet.json);
+		OutputStream out = response.getOutputStream();
+		if (callback != null) {
+			SherpaServlet.callbackStart(out, callback);
+		}
+		out.write('[');
+		for (int i = 0; i < calls.length; i++) {
+			// help out while the next response isn't done.
+			while (!results.get(i).isDone() && step()) {
+			}
+			if (i > 0) {
+				out.write(',');
+			}
+			out.write(results.get(i).join());
+			if (i+1 < calls.length && !results.get(i+1).isDone()) {
+				// let the client have what we have while we wait.
+				out.flush();
+			}
+		}
+		out.write(']');
+		if (callback != null) {
+			SherpaServlet.callbackEnd(out);
+		}
+	}
+
+	// parse reads the calls from the request, returning an error message for a bad request.
+	private String parse(WireFormat in, InputStream body) {
+		JsonNode root;
+		try {
+			root = servlet.mapper.readTree(servlet.parser(in, body));
+		} catch (JsonProcessingException e) {
+			return "could not parse batch: " + e.getOriginalMessage();
+		} catch (IOException e) {
+			return "could not parse batch: " + e.getMessage();
+		}
+		if (root == null || !root.isArray()) {
+			return "could not parse batch: request must be an array of calls";
+		}
+		if (root.size() > servlet.options.batchMaxCalls) {
+			return String.format("too many calls in batch: maximum %d, got %d", servlet.options.batchMaxCalls, root.size());
+		}
+		calls = new JsonNode[root.size()];
+		for (int i = 0; i < calls.length; i++) {
+			calls[i] = root.get(i);
+			if (!calls[i].isObject()) {
+				return String.format("could not parse batch: call %d must be an object", i);
+			}
+		}
+		return null;
+	}
+
+	private void work() {
+		while (step()) {
+		}
+	}
+
+	// step makes the next call that hasn't started yet, returning false if there was none.
+	private boolean step() {
+		int i = next.getAndIncrement();
+		if (i >= calls.length) {
+			return false;
+		}
+		try {
+			results.get(i).complete(call(calls[i]));
+		} catch (Throwable t) {
+			SherpaServlet.logger.log(Level.SEVERE, "calling function in batch", t);
+			try {
+				results.get(i).complete(error(new BufferedResponse(response), servlet.SHERPA_SERVER_ERROR, "error calling function"));
+			} catch (Throwable tt) {
+				results.get(i).completeExceptionally(tt);
+			}
+		}
+		return true;
+	}
+
+	// call makes a single call, returning the serialized sherpa response.
+	private byte[] call(JsonNode c) throws Exception {
+		BufferedResponse br = new BufferedResponse(response);
+		JsonNode fn = c.get("function");
+		if (fn == null || !fn.isTextual()) {
+			servlet.collector.sherpaProtocolError();
+			return error(br, servlet.SHERPA_BAD_REQUEST, "could not parse batch call: function must be a string");
+		}
+		String name = fn.asText();
+		if (name.equals("_batch")) {
+			servlet.collector.sherpaBadFunction();
+			return error(br, servlet.SHERPA_BAD_FUNCTION, "batches cannot be nested");
+		}
+		// the call is made with a regular request object, so it is decoded exactly like a single call, from the tree we already have.
+		ObjectNode request = servlet.mapper.createObjectNode();
+		JsonNode params = c.get("params");
+		if (params != null) {
+			request.set("params", params);
+		}
+		CompletableFuture<Void> pending = servlet.callParsed(client, br, servlet.endpoints.get("/" + name), request);
+		if (pending != null) {
+			pending.join();
+		}
+		return br.body.toByteArray();
+	}
+
+	private byte[] error(BufferedResponse br, String code, String message) throws IOException {
+		servlet.respond(br, null, servlet.json, new SherpaResponse(null, new SherpaError(code, message)), HttpServletResponse.SC_OK);
+		return br.body.toByteArray();
+	}
+}
@@ -0,0 +1,34 @@
+package nl.irias.sherpa;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+// BufferPool keeps byte arrays that responses are serialized into, see ResponseBuffer, so they are not allocated for each response.
+// The pool is bounded: a buffer released while maxBuffers are kept already is left to the garbage collector.
+// Buffers that grew while serializing a response are kept at their grown size, which is at most the limit above which responses are streamed.
+class BufferPool {
+	final int maxBuffers; // zero disables pooling
+	final int initialSize;
+	private final ArrayBlockingQueue<byte[]> free;
+
+	BufferPool(int maxBuffers, int initialSize) {
+		this.maxBuffers = maxBuffers;
+		this.initialSize = initialSize;
+		this.free = maxBuffers > 0 ? new ArrayBlockingQueue<>(maxBuffers) : null;
+	}
+
+	// poll returns a buffer from the pool, or null if there is none.
+	byte[] poll() {
+		return free == null ? null : free.poll();
+	}
+
+	void release(byte[] buf) {
+		if (free != null) {
+			free.offer(buf);
+		}
+	}
+
+	// size returns the number of buffers in the pool.
+	int size() {
+		return free == null ? 0 : free.size();
+	}
+}
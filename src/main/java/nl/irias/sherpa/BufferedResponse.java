@@ -0,0 +1,127 @@
+package nl.irias.sherpa;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+// BufferedResponse captures status, headers and body of a response in memory.
+// Used for calls in async mode: the function runs against a BufferedResponse, after which the response is copied to the real response with non-blocking IO.
+class BufferedResponse extends HttpServletResponseWrapper {
+	int status = SC_OK;
+	String contentType;
+	final Map<String, List<String>> headers = new LinkedHashMap<>();
+	final ByteArrayOutputStream body = new ByteArrayOutputStream();
+	final ServletOutputStream out = new ServletOutputStream() {
+		@Override
+		public void write(int b) {
+			body.write(b);
+		}
+
+		@Override
+		public void write(byte[] buf, int off, int len) {
+			body.write(buf, off, len);
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener l) {
+			throw new IllegalStateException("buffered response is always ready");
+		}
+	};
+
+	BooleanSupplier claimer; // set by AsyncCall, see claim
+
+	BufferedResponse(HttpServletResponse response) {
+		super(response);
+	}
+
+	// claim returns whether the call still gets to respond. in async mode, a call that timed out has been responded to already.
+	boolean claim() {
+		return claimer == null || claimer.getAsBoolean();
+	}
+
+	@Override
+	public void setStatus(int status) {
+		this.status = status;
+	}
+
+	@Override
+	public int getStatus() {
+		return status;
+	}
+
+	// the length is set by commitTo.
+	@Override
+	public void setContentLength(int len) {
+	}
+
+	@Override
+	public void setContentLengthLong(long len) {
+	}
+
+	@Override
+	public void setContentType(String contentType) {
+		this.contentType = contentType;
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public void setHeader(String name, String value) {
+		List<String> l = new ArrayList<>();
+		l.add(value);
+		headers.put(name.toLowerCase(), l);
+	}
+
+	@Override
+	public void addHeader(String name, String value) {
+		headers.computeIfAbsent(name.toLowerCase(), k -> new ArrayList<>()).add(value);
+	}
+
+	@Override
+	public boolean containsHeader(String name) {
+		return headers.containsKey(name.toLowerCase());
+	}
+
+	@Override
+	public String getHeader(String name) {
+		List<String> l = headers.get(name.toLowerCase());
+		return l == null ? null : l.get(0);
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() {
+		return out;
+	}
+
+	// commitTo copies status and headers to "r" and returns the body, to be written by the caller.
+	byte[] commitTo(HttpServletResponse r) {
+		r.setStatus(status);
+		if (contentType != null) {
+			r.setContentType(contentType);
+		}
+		for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+			for (String v : e.getValue()) {
+				r.addHeader(e.getKey(), v);
+			}
+		}
+		byte[] buf = body.toByteArray();
+		r.setContentLength(buf.length);
+		return buf;
+	}
+}
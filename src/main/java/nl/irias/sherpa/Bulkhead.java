@@ -0,0 +1,137 @@
+package nl.irias.sherpa;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Bulkhead limits the number of calls running at the same time, for a single function or for all functions.
+// A call over the limit waits for at most maxWait milliseconds if fewer than maxQueued calls are waiting already, otherwise it is rejected right away.
+// With an adaptive limit, the limit moves between 1 and maxConcurrent based on latency: it grows while calls are as fast as the fastest
+// recently seen, and shrinks when latency doubles, which happens when calls start queueing for a resource behind the function.
+class Bulkhead {
+	final int maxConcurrent;
+	final int maxQueued;
+	final long maxWaitNanos;
+	final boolean adaptive;
+
+	private volatile int limit;
+	private final AtomicInteger active = new AtomicInteger();
+	private volatile int waiting; // changed with lock held
+
+	// for adaptive limits, changed with lock held.
+	private long minNanos = Long.MAX_VALUE; // lowest latency of the previous window
+	private long windowMinNanos = Long.MAX_VALUE;
+	private int samples;
+	private int increase; // calls at the limit since the last increase
+	private int cooldown; // calls until the limit can shrink again, so a burst of slow calls shrinks it once
+
+	static final int WINDOW = 1000; // samples after which the lowest latency is forgotten
+
+	Bulkhead(int maxConcurrent, int maxQueued, long maxWait, boolean adaptive) {
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueued = maxQueued;
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+		this.adaptive = adaptive;
+		this.limit = maxConcurrent;
+	}
+
+	int limit() {
+		return limit;
+	}
+
+	int active() {
+		return active.get();
+	}
+
+	private boolean tryAcquire() {
+		for (;;) {
+			int n = active.get();
+			if (n >= limit) {
+				return false;
+			}
+			if (active.compareAndSet(n, n+1)) {
+				return true;
+			}
+		}
+	}
+
+	// acquire returns whether the call can proceed, waiting for a slot if the queue has room. release must be called for an acquired slot.
+	boolean acquire() {
+		if (tryAcquire()) {
+			return true;
+		}
+		if (maxQueued <= 0 || maxWaitNanos <= 0) {
+			return false;
+		}
+		synchronized (this) {
+			if (waiting >= maxQueued) {
+				return false;
+			}
+			waiting++;
+			try {
+				// release decrements before looking at waiting, so we either see the free slot, or get notified.
+				long deadline = System.nanoTime() + maxWaitNanos;
+				while (!tryAcquire()) {
+					long left = deadline - System.nanoTime();
+					if (left <= 0) {
+						return false;
+					}
+					TimeUnit.NANOSECONDS.timedWait(this, left);
+				}
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				waiting--;
+			}
+		}
+	}
+
+	// release frees the slot of a call that started at "start", from System.nanoTime.
+	void release(long start) {
+		active.decrementAndGet();
+		if (adaptive) {
+			adapt(System.nanoTime() - start);
+		}
+		wake();
+	}
+
+	// cancel frees an acquired slot of a call that didn't run, e.g. because another limit rejected it.
+	// its latency says nothing about the calls behind the limit, so it isn't used to adapt the limit.
+	void cancel() {
+		active.decrementAndGet();
+		wake();
+	}
+
+	private void wake() {
+		if (waiting > 0) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	private synchronized void adapt(long nanos) {
+		windowMinNanos = Math.min(windowMinNanos, nanos);
+		if (++samples >= WINDOW) {
+			minNanos = windowMinNanos;
+			windowMinNanos = Long.MAX_VALUE;
+			samples = 0;
+		}
+		long min = Math.min(minNanos, windowMinNanos);
+		if (cooldown > 0) {
+			cooldown--;
+		}
+		if (nanos > 2*min) {
+			if (cooldown == 0) {
+				limit = Math.max(1, limit - Math.max(1, limit/10));
+				cooldown = limit;
+			}
+			increase = 0;
+		} else if (active.get()+1 >= limit && limit < maxConcurrent && ++increase >= limit) {
+			// the limit was reached without latency going up, we can take one more.
+			limit++;
+			increase = 0;
+		}
+	}
+}
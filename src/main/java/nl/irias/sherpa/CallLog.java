@@ -0,0 +1,95 @@
+package nl.irias.sherpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+// CallLog keeps the most recent calls, and separately the most recent slow calls, so slow calls aren't pushed out by the fast calls after them.
+// Recording is lock-free, a call claims a slot in a ring with an atomic counter and replaces the record in it.
+// Parameters are only serialized for slow calls, once the call has completed and is known to be slow.
+class CallLog {
+	final long slowNanos; // zero if slow calls aren't kept
+	private final Ring recent; // null if recent calls aren't kept
+	private final Ring slow;
+	private final ObjectWriter writer; // for parameters
+
+	CallLog(int recentCalls, long slowCallThreshold, int slowCalls, ObjectWriter writer) {
+		this.recent = recentCalls > 0 ? new Ring(recentCalls) : null;
+		this.slowNanos = slowCallThreshold > 0 && slowCalls > 0 ? TimeUnit.MILLISECONDS.toNanos(slowCallThreshold) : 0;
+		this.slow = slowNanos > 0 ? new Ring(slowCalls) : null;
+		this.writer = writer;
+	}
+
+	// Ring holds the last records added. A reader copying the records can miss records added at the same time.
+	static class Ring {
+		private final AtomicReferenceArray<SherpaCallRecord> slots;
+		private final AtomicLong next = new AtomicLong();
+
+		Ring(int size) {
+			this.slots = new AtomicReferenceArray<>(size);
+		}
+
+		void add(SherpaCallRecord r) {
+			slots.set((int)(next.getAndIncrement() % slots.length()), r);
+		}
+
+		// list returns the records, most recent first.
+		List<SherpaCallRecord> list() {
+			int size = slots.length();
+			long n = next.get();
+			List<SherpaCallRecord> l = new ArrayList<>(size);
+			for (long i = n-1; i >= 0 && i >= n-size; i--) {
+				SherpaCallRecord r = slots.get((int)(i % size));
+				if (r != null) {
+					l.add(r);
+				}
+			}
+			// a slot can still hold an older record while a writer is replacing it.
+			l.sort((SherpaCallRecord a, SherpaCallRecord b) -> Long.compare(b.time, a.time));
+			return l;
+		}
+	}
+
+	// record adds a completed call. params are null if the call failed before they were read.
+	void record(SherpaCallStats stats, String errorCode, Object[] params, boolean logParameters) {
+		boolean isSlow = slowNanos > 0 && stats.totalNanos >= slowNanos;
+		if (recent == null && !isSlow) {
+			return;
+		}
+		String p = null;
+		if (isSlow && params != null && logParameters) {
+			try {
+				p = SherpaServlet.trim(writer.writeValueAsString(params), 4*1024);
+			} catch (Exception e) {
+				p = "(parameters could not be serialized: " + e.getMessage() + ")";
+			}
+		}
+		SherpaCallRecord r = new SherpaCallRecord(System.currentTimeMillis(), stats, errorCode, isSlow, p);
+		if (recent != null) {
+			recent.add(r);
+		}
+		if (isSlow) {
+			slow.add(r);
+			if (SherpaServlet.logger.isLoggable(Level.INFO)) {
+				SherpaServlet.logger.log(Level.INFO, String.format("slow call of function %s: %dms, decode %dms, invoke %dms, encode %dms, request %d bytes, response %d bytes%s", stats.name, millis(stats.totalNanos), millis(stats.decodeNanos), millis(stats.invokeNanos), millis(stats.encodeNanos), stats.requestBytes, stats.responseBytes, errorCode == null ? "" : ", error " + errorCode));
+			}
+		}
+	}
+
+	private static long millis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	List<SherpaCallRecord> recent() {
+		return recent == null ? new ArrayList<>() : recent.list();
+	}
+
+	List<SherpaCallRecord> slow() {
+		return slow == null ? new ArrayList<>() : slow.list();
+	}
+}
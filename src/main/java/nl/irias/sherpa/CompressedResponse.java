@@ -0,0 +1,266 @@
+package nl.irias.sherpa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+// CompressedResponse compresses the body with the encoding accepted by the client, once it reaches "threshold" bytes.
+// A complete body, announced by setting its Content-Length before writing it in one go (as ResponseBuffer does), is compressed in one pass and sent with the compressed Content-Length.
+// Otherwise, the body is buffered until the threshold, smaller responses are written uncompressed with a Content-Length.
+// After the threshold, the body is compressed while it is written. finish must be called when done writing.
+class CompressedResponse extends HttpServletResponseWrapper {
+	final String encoding;
+	final int threshold;
+	long length = -1; // of the complete body, if set before writing
+	Output out;
+
+	CompressedResponse(HttpServletResponse response, String encoding, int threshold) {
+		super(response);
+		this.encoding = encoding;
+		this.threshold = threshold;
+	}
+
+	// negotiate returns the encoding to compress with for an Accept-Encoding header, gzip or deflate, or null if the client accepts neither.
+	// an encoding listed by name takes precedence over "*", so "*, gzip;q=0" excludes gzip.
+	static String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		double gzip = -1; // -1 if not listed
+		double deflate = -1;
+		double any = -1;
+		for (String s : acceptEncoding.split(",")) {
+			String[] t = s.split(";");
+			String name = t[0].trim().toLowerCase();
+			double q = 1;
+			for (int i = 1; i < t.length; i++) {
+				String p = t[i].trim();
+				if (p.startsWith("q=")) {
+					try {
+						q = Double.parseDouble(p.substring(2));
+					} catch (NumberFormatException e) {
+						q = 0;
+					}
+				}
+			}
+			if (name.equals("gzip") || name.equals("x-gzip")) {
+				gzip = Math.max(gzip, q);
+			} else if (name.equals("deflate")) {
+				deflate = Math.max(deflate, q);
+			} else if (name.equals("*")) {
+				any = Math.max(any, q);
+			}
+		}
+		if (gzip < 0) {
+			gzip = any;
+		}
+		if (deflate < 0) {
+			deflate = any;
+		}
+		// gzip wins ties, it is listed first by browsers and its framing is better supported than deflate.
+		if (gzip > 0 && gzip >= deflate) {
+			return "gzip";
+		}
+		if (deflate > 0) {
+			return "deflate";
+		}
+		return null;
+	}
+
+	// Gzip and Deflate are the compressors, their deflater can be ended without finishing the stream, see end.
+	interface Compressor {
+		void end();
+	}
+
+	static class Gzip extends GZIPOutputStream implements Compressor {
+		Gzip(OutputStream out) throws IOException {
+			super(out, 8*1024, true);
+		}
+
+		@Override
+		public void end() {
+			def.end();
+		}
+	}
+
+	static class Deflate extends DeflaterOutputStream implements Compressor {
+		Deflate(OutputStream out) {
+			super(out, true);
+		}
+
+		@Override
+		public void end() {
+			def.end();
+		}
+	}
+
+	static DeflaterOutputStream compressor(OutputStream out, String encoding) throws IOException {
+		// with sync flush, a flush of the response sends everything compressed so far.
+		if (encoding.equals("gzip")) {
+			return new Gzip(out);
+		}
+		return new Deflate(out);
+	}
+
+	static byte[] compress(byte[] data, String encoding) throws IOException {
+		return compress(data, 0, data.length, encoding);
+	}
+
+	static byte[] compress(byte[] data, int off, int len, String encoding) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(len/4 + 64);
+		try (OutputStream z = compressor(buf, encoding)) {
+			z.write(data, off, len);
+		}
+		return buf.toByteArray();
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (out == null) {
+			out = new Output(super.getOutputStream());
+		}
+		return out;
+	}
+
+	// the content length we send is set when writing, we only remember the length of the uncompressed body.
+	@Override
+	public void setContentLength(int len) {
+		setContentLengthLong(len);
+	}
+
+	@Override
+	public void setContentLengthLong(long len) {
+		if (out == null || out.empty()) {
+			length = len;
+		}
+	}
+
+	void finish() throws IOException {
+		if (out != null) {
+			out.finish();
+		}
+	}
+
+	// end frees the native memory of the compressor, also after an error while writing. it doesn't write anything.
+	void end() {
+		if (out != null) {
+			out.end();
+		}
+	}
+
+	class Output extends ServletOutputStream {
+		final ServletOutputStream raw;
+		ByteArrayOutputStream buf; // until we reach the threshold, created on first partial write
+		DeflaterOutputStream z; // once we reach the threshold
+		boolean whole; // complete body was written directly
+
+		Output(ServletOutputStream raw) {
+			this.raw = raw;
+		}
+
+		boolean empty() {
+			return buf == null && z == null && !whole;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (z != null) {
+				z.write(b);
+			} else if (whole) {
+				raw.write(b);
+			} else {
+				buffered().write(b);
+				check();
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (z != null) {
+				z.write(b, off, len);
+			} else if (whole) {
+				raw.write(b, off, len);
+			} else if (buf == null && len == length) {
+				writeWhole(b, off, len);
+			} else {
+				buffered().write(b, off, len);
+				check();
+			}
+		}
+
+		private ByteArrayOutputStream buffered() {
+			if (buf == null) {
+				buf = new ByteArrayOutputStream();
+			}
+			return buf;
+		}
+
+		// writeWhole writes a complete body, compressed in one pass if it reaches the threshold.
+		private void writeWhole(byte[] b, int off, int len) throws IOException {
+			whole = true;
+			if (len < threshold) {
+				CompressedResponse.super.setContentLength(len);
+				raw.write(b, off, len);
+				return;
+			}
+			byte[] data = compress(b, off, len, encoding);
+			setHeader("Content-Encoding", encoding);
+			CompressedResponse.super.setContentLength(data.length);
+			raw.write(data);
+		}
+
+		private void check() throws IOException {
+			if (buf.size() >= threshold) {
+				setHeader("Content-Encoding", encoding);
+				z = compressor(raw, encoding);
+				buf.writeTo(z);
+				buf = null;
+			}
+		}
+
+		// below the threshold we don't know yet whether we'll compress, so we keep buffering.
+		@Override
+		public void flush() throws IOException {
+			if (z != null) {
+				z.flush();
+			}
+		}
+
+		void finish() throws IOException {
+			if (z != null) {
+				// also ends the deflater, releasing its native memory.
+				z.close();
+			} else if (buf != null) {
+				CompressedResponse.super.setContentLength(buf.size());
+				buf.writeTo(raw);
+				buf = null;
+				whole = true;
+			}
+		}
+
+		void end() {
+			if (z != null) {
+				// ending again after finish is harmless.
+				((Compressor)z).end();
+			}
+			buf = null;
+		}
+
+		@Override
+		public boolean isReady() {
+			return raw.isReady();
+		}
+
+		@Override
+		public void setWriteListener(WriteListener l) {
+			raw.setWriteListener(l);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package nl.irias.sherpa;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// CountingInputStream keeps track of the number of bytes read.
+// With a limit, reading fails with a SherpaServlet.LimitException once more than limit bytes have been read.
+class CountingInputStream extends FilterInputStream {
+	long count;
+	final long limit; // zero for no limit
+
+	CountingInputStream(InputStream in) {
+		this(in, 0);
+	}
+
+	CountingInputStream(InputStream in, long limit) {
+		super(in);
+		this.limit = limit;
+	}
+
+	private void check() throws SherpaServlet.LimitException {
+		if (limit > 0 && count > limit) {
+			throw SherpaServlet.LimitException.tooLarge(limit);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		int c = in.read();
+		if (c >= 0) {
+			count++;
+			check();
+		}
+		return c;
+	}
+
+	@Override
+	public int read(byte[] buf, int off, int len) throws IOException {
+		int n = in.read(buf, off, len);
+		if (n > 0) {
+			count += n;
+			check();
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long r = in.skip(n);
+		count += r;
+		check();
+		return r;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
@@ -0,0 +1,26 @@
+package nl.irias.sherpa;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// CountingOutputStream keeps track of the number of bytes written.
+class CountingOutputStream extends FilterOutputStream {
+	long count;
+
+	CountingOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		count++;
+	}
+
+	@Override
+	public void write(byte[] buf, int off, int len) throws IOException {
+		out.write(buf, off, len);
+		count += len;
+	}
+}
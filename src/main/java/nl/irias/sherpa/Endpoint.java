@@ -0,0 +1,45 @@
+package nl.irias.sherpa;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+// Endpoint is an entry in the dispatch table of SherpaServlet, by request path, e.g. "/sherpa.js" or "/add".
+// For functions, it holds everything a call needs, resolved while constructing the servlet, so a call needs a single lookup.
+// Fields are not changed after construction, except the concurrency limit, see SherpaServlet.limitConcurrency.
+class Endpoint {
+	enum Kind {
+		HTML, JAVASCRIPT, JSON, METRICS, DEBUG, // served for GET only
+		DOCS, BATCH, FUNCTION, // called like functions
+	}
+
+	final Kind kind;
+	final String name; // without leading slash
+
+	// for functions.
+	SherpaInvoker invoker;
+	ObjectReader[] readers;
+	ObjectWriter writer; // for streaming results, the writer is for the elements
+	boolean stage; // declared to return a CompletionStage
+	boolean stream; // declared to return an Iterator, Stream or SherpaProducer
+	boolean publish; // declared to return a SherpaPublisher
+	boolean logParameters;
+	boolean logResult;
+	long timeout; // in milliseconds, for async mode
+	int compressThreshold;
+	int maxRequestBytes; // zero for no limit
+	RateLimiter rateLimit; // null without limit
+	ResultCache cache; // null without result cache
+	SherpaServlet.HttpCaching httpCaching; // null if clients may not cache responses
+	volatile Bulkhead limit; // null without limit
+	SherpaMetrics.Function metrics; // also for _docs
+
+	Endpoint(Kind kind, String name) {
+		this.kind = kind;
+		this.name = name;
+	}
+
+	// callable returns whether the endpoint is handled by SherpaServlet.call.
+	boolean callable() {
+		return kind == Kind.DOCS || kind == Kind.BATCH || kind == Kind.FUNCTION;
+	}
+}
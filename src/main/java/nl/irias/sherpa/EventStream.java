@@ -0,0 +1,314 @@
+package nl.irias.sherpa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+// EventStream sends the values of a SherpaPublisher to the client as server-sent events, see SherpaServlet.publish.
+// Values are serialized on the thread of the publisher and queued, the queue is written with non-blocking IO whenever the connection can take more.
+// The queue is bounded, so a client that doesn't keep up makes next reject values, instead of the servlet buffering without limit.
+// The subscription ends when the publisher completes or fails, or when writing fails, e.g. because the client went away.
+// Heartbeats, comment lines, are written while there is nothing else to write, so a client that went away is noticed even when no values are published.
+class EventStream implements SherpaSubscriber<Object>, WriteListener, AsyncListener {
+	static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+	static final byte[] DATA = "data: ".getBytes(StandardCharsets.UTF_8);
+	static final byte[] END = "event: end\ndata: {}\n\n".getBytes(StandardCharsets.UTF_8);
+	static final byte[] ERROR = "event: error\n".getBytes(StandardCharsets.UTF_8);
+	static final byte[] RESULT_START = "{\"result\":".getBytes(StandardCharsets.UTF_8);
+	static final byte[] RESULT_END = ",\"error\":null}".getBytes(StandardCharsets.UTF_8);
+
+	final SherpaServlet servlet;
+	final AsyncContext ac;
+	final Endpoint endpoint;
+	final Runnable release; // releases the concurrency limits, null without limits
+	final Object[] params; // for logging errors
+	final boolean sensitive;
+	final int maxQueued;
+
+	// guarded by this. the flags and queue size are volatile, so a publisher that is rejected doesn't take the lock, and cannot starve the writer.
+	private ServletOutputStream out; // null until started
+	private ScheduledFuture<?> heartbeat;
+	private final ArrayDeque<byte[]> queue = new ArrayDeque<>(); // serialized values
+	private volatile int queued; // size of queue
+	private boolean heartbeatDue;
+	private byte[] last; // the end or error event, written after the queue
+	private boolean flush = true; // something was written since the last flush, initially the headers
+	private volatile boolean ending; // the publisher is done, we close once the queue is written
+	private volatile boolean closed;
+	private final List<Runnable> closers = new ArrayList<>();
+	private long sent;
+	private final AtomicLong rejected = new AtomicLong();
+
+	EventStream(SherpaServlet servlet, AsyncContext ac, Endpoint endpoint, Runnable release, Object[] params, boolean sensitive, int maxQueued) {
+		this.servlet = servlet;
+		this.ac = ac;
+		this.endpoint = endpoint;
+		this.release = release;
+		this.params = params;
+		this.sensitive = sensitive;
+		this.maxQueued = maxQueued;
+	}
+
+	// start writes the headers and registers the listeners. heartbeats is null if no heartbeats are sent, interval is in milliseconds.
+	void start(ScheduledExecutorService heartbeats, long interval) throws IOException {
+		ac.setTimeout(0);
+		ac.addListener(this);
+		synchronized (this) {
+			out = ac.getResponse().getOutputStream();
+			out.setWriteListener(this);
+			if (heartbeats != null && !closed) {
+				heartbeat = heartbeats.scheduleWithFixedDelay(this::heartbeat, interval, interval, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	@Override
+	public boolean next(Object value) {
+		if (closed()) {
+			return false;
+		}
+		if (queued >= maxQueued) {
+			reject();
+			return false;
+		}
+		byte[] data;
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			buf.write(RESULT_START);
+			endpoint.writer.writeValue(buf, value);
+			buf.write(RESULT_END);
+			data = event(null, buf.toByteArray());
+		} catch (IOException e) {
+			error(e);
+			return false;
+		}
+		synchronized (this) {
+			if (ending || closed) {
+				return false;
+			}
+			if (queue.size() >= maxQueued) {
+				reject();
+				return false;
+			}
+			queue.add(data);
+			queued = queue.size();
+		}
+		drain();
+		return true;
+	}
+
+	private void reject() {
+		rejected.incrementAndGet();
+		servlet.metrics.eventRejected(endpoint.metrics);
+	}
+
+	@Override
+	public void error(Throwable t) {
+		SherpaError error;
+		try {
+			error = servlet.failed(endpoint.name, t, params, sensitive).error;
+		} catch (IOException e) {
+			error = new SherpaError(servlet.SHERPA_SERVER_ERROR, e.getMessage());
+		}
+		end(error);
+	}
+
+	// end ends the subscription with an error event, with a sherpa response holding the error as data.
+	void end(SherpaError error) {
+		byte[] data;
+		try {
+			data = event(ERROR, servlet.logWriter.writeValueAsBytes(new SherpaResponse(null, error)));
+		} catch (IOException e) {
+			SherpaServlet.logger.log(Level.WARNING, "serializing error event", e);
+			data = END;
+		}
+		end(data);
+	}
+
+	@Override
+	public void complete() {
+		end(END);
+	}
+
+	private void end(byte[] data) {
+		synchronized (this) {
+			if (ending || closed) {
+				return;
+			}
+			ending = true;
+			last = data;
+		}
+		drain();
+	}
+
+	@Override
+	public boolean closed() {
+		return ending || closed;
+	}
+
+	@Override
+	public void onClose(Runnable r) {
+		synchronized (this) {
+			if (!closed) {
+				closers.add(r);
+				return;
+			}
+		}
+		r.run();
+	}
+
+	// event returns an event with json as data, of the type in field "type", e.g. ERROR, or a message event for null.
+	// json from a mapper that indents has newlines, each line needs its own "data:" field.
+	static byte[] event(byte[] type, byte[] json) {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(json.length + 24);
+		if (type != null) {
+			buf.write(type, 0, type.length);
+		}
+		buf.write(DATA, 0, DATA.length);
+		for (byte b : json) {
+			if (b == '\r') {
+				continue;
+			}
+			buf.write(b);
+			if (b == '\n') {
+				buf.write(DATA, 0, DATA.length);
+			}
+		}
+		buf.write('\n');
+		buf.write('\n');
+		return buf.toByteArray();
+	}
+
+	private void heartbeat() {
+		synchronized (this) {
+			if (!queue.isEmpty()) {
+				return;
+			}
+			heartbeatDue = true;
+		}
+		drain();
+	}
+
+	// drain writes as much as the connection takes without blocking. it is called by the publisher, the heartbeat and the container when writing is possible again.
+	// once isReady returns false, the container calls onWritePossible when we can continue.
+	private void drain() {
+		boolean done = false;
+		synchronized (this) {
+			if (out == null || closed) {
+				return;
+			}
+			try {
+				while (out.isReady()) {
+					byte[] b = queue.poll();
+					if (b != null) {
+						queued = queue.size();
+						out.write(b);
+						flush = true;
+						sent++;
+						servlet.metrics.event(endpoint.metrics);
+					} else if (heartbeatDue) {
+						heartbeatDue = false;
+						out.write(HEARTBEAT);
+						flush = true;
+					} else if (last != null) {
+						out.write(last);
+						last = null;
+						flush = true;
+					} else if (flush) {
+						flush = false;
+						out.flush();
+					} else {
+						done = ending;
+						break;
+					}
+				}
+			} catch (IOException e) {
+				SherpaServlet.logger.log(Level.FINE, String.format("writing events of function %s", endpoint.name), e);
+				done = true;
+			}
+		}
+		if (done) {
+			close();
+		}
+	}
+
+	// close ends the subscription and the response, releases the concurrency limits and calls the functions registered with onClose.
+	private void close() {
+		List<Runnable> l;
+		long n;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			n = sent;
+			closed = true;
+			queue.clear();
+			queued = 0;
+			if (heartbeat != null) {
+				heartbeat.cancel(false);
+			}
+			l = new ArrayList<>(closers);
+			closers.clear();
+		}
+		try {
+			ac.complete();
+		} catch (IllegalStateException e) {
+			// already completed by the container, e.g. after an error.
+		}
+		if (release != null) {
+			release.run();
+		}
+		servlet.metrics.unsubscribed(endpoint.metrics, n, rejected.get());
+		for (Runnable r : l) {
+			try {
+				r.run();
+			} catch (RuntimeException e) {
+				SherpaServlet.logger.log(Level.WARNING, String.format("close handler of subscription to function %s", endpoint.name), e);
+			}
+		}
+	}
+
+	@Override
+	public void onWritePossible() {
+		drain();
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		SherpaServlet.logger.log(Level.FINE, String.format("writing events of function %s", endpoint.name), t);
+		close();
+	}
+
+	@Override
+	public void onComplete(AsyncEvent event) {
+		close();
+	}
+
+	@Override
+	public void onTimeout(AsyncEvent event) {
+		close();
+	}
+
+	@Override
+	public void onError(AsyncEvent event) {
+		close();
+	}
+
+	@Override
+	public void onStartAsync(AsyncEvent event) {
+	}
+}
@@ -0,0 +1,80 @@
+package nl.irias.sherpa;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+
+// LimitedJsonParser fails with a SherpaServlet.LimitException as soon as the input nests deeper than maxDepth, or has an array with more than maxArrayLength elements.
+// The checks are made per token, before deserializers recurse into the value.
+class LimitedJsonParser extends JsonParserDelegate {
+	final int maxDepth; // zero for no limit
+	final int maxArrayLength; // zero for no limit
+	int depth;
+
+	LimitedJsonParser(JsonParser p, int maxDepth, int maxArrayLength) {
+		super(p);
+		this.maxDepth = maxDepth;
+		this.maxArrayLength = maxArrayLength;
+	}
+
+	@Override
+	public JsonToken nextToken() throws IOException {
+		JsonToken t = delegate.nextToken();
+		if (t == null) {
+			return null;
+		}
+		if (maxArrayLength > 0 && !t.isStructEnd() && t != JsonToken.FIELD_NAME) {
+			// for a start token, the context is the new object or array, we want the one it is in.
+			JsonStreamContext ctx = delegate.getParsingContext();
+			if (t.isStructStart()) {
+				ctx = ctx.getParent();
+			}
+			if (ctx.inArray() && ctx.getCurrentIndex() >= maxArrayLength) {
+				throw new SherpaServlet.LimitException(String.format("request too large: arrays can have at most %d elements", maxArrayLength));
+			}
+		}
+		if (t.isStructStart()) {
+			depth++;
+			if (maxDepth > 0 && depth > maxDepth) {
+				throw new SherpaServlet.LimitException(String.format("request too large: objects and arrays can be nested at most %d deep", maxDepth));
+			}
+		} else if (t.isStructEnd()) {
+			depth--;
+		}
+		return t;
+	}
+
+	// the delegate implementations would read tokens without our checks.
+
+	@Override
+	public JsonToken nextValue() throws IOException {
+		JsonToken t = nextToken();
+		if (t == JsonToken.FIELD_NAME) {
+			t = nextToken();
+		}
+		return t;
+	}
+
+	@Override
+	public JsonParser skipChildren() throws IOException {
+		JsonToken t = getCurrentToken();
+		if (t == null || !t.isStructStart()) {
+			return this;
+		}
+		for (int open = 1; open > 0;) {
+			t = nextToken();
+			if (t == null) {
+				break;
+			}
+			if (t.isStructStart()) {
+				open++;
+			} else if (t.isStructEnd()) {
+				open--;
+			}
+		}
+		return this;
+	}
+}
@@ -0,0 +1,69 @@
+package nl.irias.sherpa;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// RateLimiter is a token bucket per client for a single function: a client can make "burst" calls at once, and gets "rate" calls per second more.
+// Buckets are spread over stripes, each with its own lock, so concurrent calls rarely wait for each other.
+// Each stripe holds a bounded number of buckets, the least recently used is evicted first: an idle client's bucket would be full again anyway.
+class RateLimiter {
+	static final int STRIPES = 64;
+
+	final double tokensPerNano;
+	final double burst;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	static class Bucket {
+		double tokens;
+		long time; // of last update, from System.nanoTime
+
+		Bucket(double tokens, long time) {
+			this.tokens = tokens;
+			this.time = time;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	static class Stripe extends LinkedHashMap<String, Bucket> {
+		final int maxEntries;
+
+		Stripe(int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+			return size() > maxEntries;
+		}
+	}
+
+	// rate in calls per second, maxClients is the total number of buckets kept.
+	RateLimiter(double rate, int burst, int maxClients) {
+		this.tokensPerNano = rate / 1e9;
+		this.burst = burst;
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(Math.max(1, maxClients / STRIPES));
+		}
+	}
+
+	// acquire takes a token for a call by "client" at "now", from System.nanoTime.
+	// it returns zero if the call can proceed, otherwise the nanoseconds until a token is available.
+	long acquire(String client, long now) {
+		Stripe s = stripes[(client.hashCode() & 0x7fffffff) % STRIPES];
+		synchronized (s) {
+			Bucket b = s.get(client);
+			if (b == null) {
+				s.put(client, new Bucket(burst - 1, now));
+				return 0;
+			}
+			b.tokens = Math.min(burst, b.tokens + (now - b.time) * tokensPerNano);
+			b.time = now;
+			if (b.tokens >= 1) {
+				b.tokens--;
+				return 0;
+			}
+			return (long)Math.ceil((1 - b.tokens) / tokensPerNano);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package nl.irias.sherpa;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+// RenderedPage is the body of sherpa.js, sherpa.json or the html page as served for one base url, ready to be written.
+// Compressed forms are made when first needed, and kept. Each form has its own strong ETag.
+class RenderedPage {
+	final byte[] data;
+	final String hash;
+	private volatile byte[] gzip;
+	private volatile byte[] deflate;
+
+	RenderedPage(byte[] data) {
+		this.data = data;
+		this.hash = hash(data);
+	}
+
+	// hash returns a short hash of data, for use in ETags.
+	static String hash(byte[] data) {
+		try {
+			byte[] sum = MessageDigest.getInstance("SHA-256").digest(data);
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(sum).substring(0, 22);
+		} catch (NoSuchAlgorithmException e) {
+			// every jvm has sha-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// body returns the data for encoding, null for uncompressed.
+	byte[] body(String encoding) throws IOException {
+		if (encoding == null) {
+			return data;
+		}
+		if (encoding.equals("gzip")) {
+			if (gzip == null) {
+				gzip = CompressedResponse.compress(data, encoding);
+			}
+			return gzip;
+		}
+		if (deflate == null) {
+			deflate = CompressedResponse.compress(data, encoding);
+		}
+		return deflate;
+	}
+
+	// etag returns the quoted strong ETag of the body for encoding.
+	String etag(String encoding) {
+		return "\"" + hash + (encoding == null ? "" : "-" + encoding) + "\"";
+	}
+
+	// matches returns whether an If-None-Match header matches the body for encoding.
+	boolean matches(String ifNoneMatch, String encoding) {
+		return etagMatches(ifNoneMatch, etag(encoding));
+	}
+
+	// etagMatches returns whether an If-None-Match header matches etag, with the weak comparison that If-None-Match uses.
+	static boolean etagMatches(String ifNoneMatch, String etag) {
+		if (etag.startsWith("W/")) {
+			etag = etag.substring(2);
+		}
+		for (String t : ifNoneMatch.split(",")) {
+			t = t.trim();
+			if (t.startsWith("W/")) {
+				t = t.substring(2);
+			}
+			if (t.equals("*") || t.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,116 @@
+package nl.irias.sherpa;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletResponse;
+
+// ResponseBuffer serializes a response body into a buffer from the pool, so the body is sent with a Content-Length, in a single write.
+// A body larger than "limit" bytes is streamed instead: the buffered part is written, and the rest goes to the response as it is written, without Content-Length.
+// With a limit of zero, everything is streamed. close must be called when done, it returns the buffer to the pool.
+// The buffered body is only written if done was called first: if serializing fails halfway, nothing is sent and the response can still be an error.
+class ResponseBuffer extends OutputStream {
+	final BufferPool pool;
+	final SherpaCollector collector;
+	final HttpServletResponse response;
+	final int limit;
+	long count; // bytes written
+
+	byte[] buf; // null once released
+	int n;
+	OutputStream out; // set when streaming
+	boolean pooled; // whether buf came from the pool
+	int grown; // number of times buf grew
+	boolean done; // body is complete, set by done
+
+	ResponseBuffer(BufferPool pool, SherpaCollector collector, HttpServletResponse response, int limit) throws IOException {
+		this.pool = pool;
+		this.collector = collector;
+		this.response = response;
+		this.limit = limit;
+		if (limit <= 0) {
+			out = response.getOutputStream();
+			return;
+		}
+		buf = pool.poll();
+		pooled = buf != null;
+		if (buf == null) {
+			buf = new byte[Math.min(pool.initialSize, limit)];
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (out == null && (n < buf.length || room(1))) {
+			buf[n++] = (byte)b;
+		} else {
+			out.write(b);
+		}
+		count++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (out == null && (n + len <= buf.length || room(len))) {
+			System.arraycopy(b, off, buf, n, len);
+			n += len;
+		} else {
+			out.write(b, off, len);
+		}
+		count += len;
+	}
+
+	// room grows the buffer to fit len more bytes and returns true. if the body would exceed the limit, it starts streaming and returns false.
+	private boolean room(int len) throws IOException {
+		long need = (long)n + len;
+		if (need > limit) {
+			out = response.getOutputStream();
+			out.write(buf, 0, n);
+			release(true);
+			return false;
+		}
+		int size = buf.length;
+		while (size < need) {
+			size = (int)Math.min(2L*size, limit);
+		}
+		buf = Arrays.copyOf(buf, size);
+		grown++;
+		return true;
+	}
+
+	private void release(boolean streamed) {
+		pool.release(buf);
+		buf = null;
+		collector.sherpaResponseBuffered(pooled, grown, streamed);
+	}
+
+	// buffered bodies can't be sent before we know their length.
+	@Override
+	public void flush() throws IOException {
+		if (out != null) {
+			out.flush();
+		}
+	}
+
+	// done marks the body as complete, so close writes it. it returns the number of bytes written.
+	long done() {
+		done = true;
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (buf == null) {
+			return;
+		}
+		try {
+			if (done) {
+				response.setContentLength(n);
+				response.getOutputStream().write(buf, 0, n);
+			}
+		} finally {
+			release(false);
+		}
+	}
+}
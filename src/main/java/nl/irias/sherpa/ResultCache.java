@@ -0,0 +1,104 @@
+package nl.irias.sherpa;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// ResultCache holds serialized responses of successful calls of a single function, by a digest of the compact form of the request, see key.
+// Entries expire after the ttl. Beyond maxEntries, the least recently used entry is evicted.
+class ResultCache {
+	final long ttlNanos;
+	final int maxEntries;
+	private final LinkedHashMap<String, Cached> entries;
+	private long generation; // incremented by clear
+
+	static class Cached {
+		final byte[] data;
+		final String etag; // for functions with http caching, otherwise null
+		final long expires; // in nanos, from System.nanoTime
+
+		Cached(byte[] data, String etag, long expires) {
+			this.data = data;
+			this.etag = etag;
+			this.expires = expires;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	ResultCache(long ttlNanos, int maxEntries) {
+		this.ttlNanos = ttlNanos;
+		this.maxEntries = maxEntries;
+		// access order makes the eldest entry the least recently used.
+		this.entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+				return size() > ResultCache.this.maxEntries;
+			}
+		};
+	}
+
+	// key returns the key for a request of function "name", with its parameters in "request".
+	// only a digest is kept, so large parameters don't take memory in the cache.
+	static String key(String name, String request) {
+		try {
+			byte[] sum = MessageDigest.getInstance("SHA-256").digest(request.getBytes(StandardCharsets.UTF_8));
+			return name + " " + Base64.getUrlEncoder().withoutPadding().encodeToString(sum);
+		} catch (NoSuchAlgorithmException e) {
+			// every jvm has sha-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// get returns the cached response for key, or null. now is from System.nanoTime.
+	synchronized Cached get(String key, long now) {
+		Cached e = entries.get(key);
+		if (e == null) {
+			return null;
+		}
+		if (now - e.expires >= 0) {
+			entries.remove(key);
+			return null;
+		}
+		return e;
+	}
+
+	// Miss is a lookup that wasn't in the cache, the response can be stored after the call.
+	static class Miss {
+		final ResultCache cache;
+		final String key;
+		final long generation;
+
+		Miss(ResultCache cache, String key, long generation) {
+			this.cache = cache;
+			this.key = key;
+			this.generation = generation;
+		}
+
+		void store(byte[] data, String etag, long now) {
+			cache.put(key, new Cached(data, etag, now + cache.ttlNanos), generation);
+		}
+	}
+
+	synchronized Miss miss(String key) {
+		return new Miss(this, key, generation);
+	}
+
+	// put stores a response, unless the cache was cleared after the lookup, the response may be stale.
+	private synchronized void put(String key, Cached e, long generation) {
+		if (generation == this.generation) {
+			entries.put(key, e);
+		}
+	}
+
+	synchronized void clear() {
+		entries.clear();
+		generation++;
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+}
@@ -0,0 +1,18 @@
+package nl.irias.sherpa;
+
+// SherpaCallRecord is a completed call kept by the servlet for diagnostics, see SherpaServlet.recentCalls and slowCalls.
+public class SherpaCallRecord {
+	public final long time; // end of the call, in milliseconds since the epoch
+	public final SherpaCallStats stats;
+	public final String errorCode; // null for successful calls
+	public final boolean slow; // took at least SherpaOptions.slowCallThreshold
+	public final String params; // json, possibly trimmed. only for slow calls of functions that allow logging their parameters, otherwise null
+
+	public SherpaCallRecord(long time, SherpaCallStats stats, String errorCode, boolean slow, String params) {
+		this.time = time;
+		this.stats = stats;
+		this.errorCode = errorCode;
+		this.slow = slow;
+		this.params = params;
+	}
+}
@@ -0,0 +1,27 @@
+package nl.irias.sherpa;
+
+// SherpaCallStats describes a completed function call, see SherpaCollector.sherpaFunctionTimed.
+// Durations are in nanoseconds, sizes in bytes.
+public class SherpaCallStats {
+	public final String name;
+	public final boolean error;
+	public final boolean serverError;
+	public final long decodeNanos; // parsing the request and binding the parameters
+	public final long invokeNanos;
+	public final long encodeNanos; // serializing and writing the response
+	public final long totalNanos;
+	public final long requestBytes;
+	public final long responseBytes;
+
+	public SherpaCallStats(String name, boolean error, boolean serverError, long decodeNanos, long invokeNanos, long encodeNanos, long totalNanos, long requestBytes, long responseBytes) {
+		this.name = name;
+		this.error = error;
+		this.serverError = serverError;
+		this.decodeNanos = decodeNanos;
+		this.invokeNanos = invokeNanos;
+		this.encodeNanos = encodeNanos;
+		this.totalNanos = totalNanos;
+		this.requestBytes = requestBytes;
+		this.responseBytes = responseBytes;
+	}
+}
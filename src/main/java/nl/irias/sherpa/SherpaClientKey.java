@@ -0,0 +1,49 @@
+package nl.irias.sherpa;
+
+import javax.servlet.http.HttpServletRequest;
+
+// SherpaClientKey identifies the caller of a function, for rate limiting. Calls with the same key share a budget.
+@FunctionalInterface
+public interface SherpaClientKey {
+	// key returns the identity of the caller, or null to not limit the call.
+	String key(HttpServletRequest request);
+
+	// remoteAddress uses the address of the connection, for servlets that are reached directly.
+	static SherpaClientKey remoteAddress() {
+		return (HttpServletRequest r) -> r.getRemoteAddr();
+	}
+
+	// forwardedFor uses the address added to the X-Forwarded-For header by the proxy in front of the servlet, for servlets behind a single proxy.
+	static SherpaClientKey forwardedFor() {
+		return forwardedFor(1);
+	}
+
+	// forwardedFor uses the address in the X-Forwarded-For header added by the first of "trustedProxies" proxies in front of the servlet.
+	// Each proxy appends the address it got the request from, so that address is counted from the right: the entries before it come from the client, who can send anything.
+	// Without the header, or with fewer entries than trusted proxies, the address of the connection is used.
+	static SherpaClientKey forwardedFor(int trustedProxies) {
+		if (trustedProxies < 1) {
+			throw new IllegalArgumentException("trustedProxies must be at least 1");
+		}
+		return (HttpServletRequest r) -> {
+			String s = r.getHeader("X-Forwarded-For");
+			if (s == null) {
+				return r.getRemoteAddr();
+			}
+			String[] t = s.split(",");
+			int i = t.length - trustedProxies;
+			if (i < 0 || t[i].trim().isEmpty()) {
+				return r.getRemoteAddr();
+			}
+			return t[i].trim();
+		};
+	}
+
+	// header uses the value of a request header, e.g. an API token. Calls without the header are limited by the address of the connection.
+	static SherpaClientKey header(String name) {
+		return (HttpServletRequest r) -> {
+			String s = r.getHeader(name);
+			return s != null ? s : r.getRemoteAddr();
+		};
+	}
+}
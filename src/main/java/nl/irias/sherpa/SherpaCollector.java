@@ -6,5 +6,42 @@ public interface SherpaCollector {
 	void sherpaBadFunction();
 	void sherpaJavascript();
 	void sherpaJSON();
+
+	// duration is the time in seconds spent executing the function.
 	void sherpaFunctionCalled(String name, boolean error, boolean serverError, double duration);
+
+	// called after the response for a function call has been written, with timings for each phase of the call.
+	default void sherpaFunctionTimed(SherpaCallStats stats) {
+	}
+
+	// called when a call is rejected because of a concurrency limit of the function or of all functions, or because no thread was available.
+	default void sherpaFunctionRejected(String name) {
+	}
+
+	// called when a call is rejected because the client made too many calls to the function, see @SherpaFunction(rateLimit=...).
+	default void sherpaFunctionRateLimited(String name) {
+	}
+
+	// called when a call in async mode did not complete within its timeout.
+	default void sherpaFunctionTimeout(String name) {
+	}
+
+	// called for calls of functions with a result cache, when the response was served from the cache.
+	default void sherpaCacheHit(String name) {
+	}
+
+	// called for calls of functions with a result cache, when the function had to be called.
+	default void sherpaCacheMiss(String name) {
+	}
+
+	// called when a subscription to a function that publishes events ends, see SherpaPublisher.
+	// events is the number of values sent, rejected the number of values rejected because the client didn't keep up.
+	default void sherpaSubscriptionEnded(String name, long events, long rejected) {
+	}
+
+	// called for each response serialized into a buffer before sending, see SherpaOptions.responseBufferBytes.
+	// pooled is whether the buffer was reused from the pool, grown the number of times it had to grow,
+	// and streamed whether the response was too large for the buffer and was streamed after all.
+	default void sherpaResponseBuffered(boolean pooled, int grown, boolean streamed) {
+	}
 }
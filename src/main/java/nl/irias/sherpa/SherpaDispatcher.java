@@ -0,0 +1,91 @@
+package nl.irias.sherpa;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.List;
+
+// SherpaDispatcher lists the functions of a section, with their settings and types, and calls them without reflection.
+// Dispatchers are generated at compile time by SherpaProcessor, from the sherpa-processor module, for each class annotated with @SherpaSection.
+// The generated class is in the package of the section, named after the section with "_SherpaDispatcher" appended, enclosing classes joined with "_", e.g. Outer_Inner_SherpaDispatcher.
+// SherpaServlet uses the generated dispatcher of a section if there is one, and finds the functions through reflection otherwise, see SherpaOptions.generatedDispatchers.
+public abstract class SherpaDispatcher {
+	// Invoker calls a function. The parameters have already been read with the types of the function.
+	@FunctionalInterface
+	public interface Invoker {
+		Object invoke(Object[] params) throws Throwable;
+	}
+
+	// Function is an exported function. The settings have the values of its @SherpaFunction annotation, and the same defaults.
+	public static class Function {
+		public final String name;
+		public final Type[] parameterTypes; // full generic types, e.g. List<Order>
+		public final Type returnType;
+		public final Invoker invoker; // null for functions found through reflection
+
+		public boolean logParameters = true;
+		public boolean logResult = true;
+		public int maxConcurrent = 0;
+		public int maxQueued = 0;
+		public long queueTimeout = 0;
+		public boolean adaptiveConcurrency = false;
+		public double rateLimit = 0;
+		public int rateBurst = 0;
+		public long timeout = 0;
+		public int compressThreshold = -1;
+		public int maxRequestBytes = -1;
+		public long cacheTtl = 0;
+		public int cacheMaxEntries = 1000;
+		public int httpMaxAge = 0;
+		public boolean httpPublic = false;
+		public Invoker version; // calls the method from httpVersion, null if not set
+
+		public Function(String name, Type[] parameterTypes, Type returnType, Invoker invoker) {
+			this.name = name;
+			this.parameterTypes = parameterTypes;
+			this.returnType = returnType;
+			this.invoker = invoker;
+		}
+
+		// for functions found through reflection, the servlet makes invokers for the method and its version method.
+		Function(Method m, SherpaFunction fn) {
+			this(m.getName(), m.getGenericParameterTypes(), m.getGenericReturnType(), null);
+			logParameters = fn.logParameters();
+			logResult = fn.logResult();
+			maxConcurrent = fn.maxConcurrent();
+			maxQueued = fn.maxQueued();
+			queueTimeout = fn.queueTimeout();
+			adaptiveConcurrency = fn.adaptiveConcurrency();
+			rateLimit = fn.rateLimit();
+			rateBurst = fn.rateBurst();
+			timeout = fn.timeout();
+			compressThreshold = fn.compressThreshold();
+			maxRequestBytes = fn.maxRequestBytes();
+			cacheTtl = fn.cacheTtl();
+			cacheMaxEntries = fn.cacheMaxEntries();
+			httpMaxAge = fn.httpMaxAge();
+			httpPublic = fn.httpPublic();
+		}
+	}
+
+	// functions returns the functions of the section, in order of declaration.
+	public abstract List<Function> functions();
+
+	// className returns the name of the generated dispatcher for a section.
+	static String className(Class<?> section) {
+		return section.getName().replace('$', '_') + "_SherpaDispatcher";
+	}
+
+	// load returns the generated dispatcher for a section, or null if it was not generated.
+	static SherpaDispatcher load(Class<?> section) throws Exception {
+		Class<?> c;
+		try {
+			c = Class.forName(className(section), true, section.getClassLoader());
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+		if (!SherpaDispatcher.class.isAssignableFrom(c)) {
+			throw new Exception(String.format("Class %s is not a SherpaDispatcher.", c.getName()));
+		}
+		return (SherpaDispatcher)c.getConstructor().newInstance();
+	}
+}
@@ -18,10 +18,10 @@ public abstract class SherpaDocHelper {
 		String s = "\n\n## Data\n\nBelow you'll find the data structures used in the functions of this section.\n";
 
 		for (Class<?> cl : classes) {
-			String name = SherpaDoclet.friendlyName(cl.getName());
+			String name = friendlyName(cl.getName());
 			s += "\n### Type " + name + "\n\n";
 			for (Field f : cl.getFields()) {
-				s += String.format("- `%s`: %s\n", f.getName(), SherpaDoclet.friendlyName(f.getGenericType().getTypeName()));
+				s += String.format("- `%s`: %s\n", f.getName(), friendlyName(f.getGenericType().getTypeName()));
 			}
 		}
 		d.text += escapeHtml(s);
@@ -40,6 +40,31 @@ public abstract class SherpaDocHelper {
 		return null;
 	}
 
+	/**
+	 * FriendlyName returns a type name for documentation: without packages, and with boxed primitive types and String in lower case, e.g. {@code List<Order>} or {@code int}.
+	 */
+	public static String friendlyName(String name) {
+		String r = name.replaceAll("[a-zA-Z0-9]+\\.", "");
+		switch (r) {
+		default:
+			break;
+
+		case "Byte":
+		case "Short":
+		case "Integer":
+		case "Long":
+		case "Float":
+		case "Double":
+		case "Character":
+		case "Boolean":
+		case "String":
+			r = r.toLowerCase();
+			break;
+		}
+
+		return r;
+	}
+
 	private static String escapeHtml(String s) {
 		return s
 			.replace("&", "&amp;")
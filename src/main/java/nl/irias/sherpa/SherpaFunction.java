@@ -13,4 +13,41 @@ public @interface SherpaFunction {
 	String synopsis() default "";
 	boolean logParameters() default true;
 	boolean logResult() default true;
+
+	// Maximum number of concurrent calls. Zero means no limit. Calls over the limit fail with error code "sherpaOverloaded".
+	// At most maxQueued calls over the limit wait for at most queueTimeout milliseconds for a call to finish.
+	// With adaptiveConcurrency, the limit is lowered while latency is high, see SherpaOptions.
+	int maxConcurrent() default 0;
+	int maxQueued() default 0;
+	long queueTimeout() default 0;
+	boolean adaptiveConcurrency() default false;
+
+	// Maximum calls per second per client, see SherpaOptions.clientKey. Zero means no limit. Calls over the limit fail with error code "sherpaRateLimited".
+	// A client can make up to rateBurst calls at once, zero means rateLimit rounded up.
+	double rateLimit() default 0;
+	int rateBurst() default 0;
+
+	// Timeout in milliseconds for calls in async mode. Zero means the default from SherpaOptions.
+	long timeout() default 0;
+
+	// Responses of at least this many bytes are compressed, if the client accepts it. -1 means the default from SherpaOptions.
+	int compressThreshold() default -1;
+
+	// Maximum size of a request in bytes. -1 means the default from SherpaOptions, zero means no limit.
+	int maxRequestBytes() default -1;
+
+	// Cache successful responses for this many milliseconds, by parameters. Zero means no caching. Only for functions without side effects.
+	// At most cacheMaxEntries responses are kept, the least recently used are evicted first.
+	long cacheTtl() default 0;
+	int cacheMaxEntries() default 1000;
+
+	// Let clients and proxies cache successful responses of GET calls for this many seconds, with Cache-Control max-age. Zero means responses are not cacheable.
+	// Responses get an ETag, conditional requests with a matching If-None-Match get a 304 response.
+	// With httpPublic, shared caches like CDNs may cache the response too. Only for responses that are the same for all users.
+	int httpMaxAge() default 0;
+	boolean httpPublic() default false;
+
+	// Name of a static method in the same class with the same parameters, returning a version of the result, e.g. a modification time.
+	// If set, the ETag is derived from the version, and a conditional request is answered without calling the function if the version matches.
+	String httpVersion() default "";
 }
@@ -0,0 +1,125 @@
+package nl.irias.sherpa;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// SherpaHistogramCollector keeps a latency histogram of the total duration of calls, per function.
+// Other events are passed on to an optional next collector, so this collector can be combined with your own.
+public class SherpaHistogramCollector implements SherpaCollector {
+	final SherpaCollector next;
+	final ConcurrentHashMap<String, SherpaLatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+	public SherpaHistogramCollector() {
+		this(null);
+	}
+
+	public SherpaHistogramCollector(SherpaCollector next) {
+		this.next = next;
+	}
+
+	// histogram returns the histogram for function "name", or null if it hasn't been called yet.
+	public SherpaLatencyHistogram histogram(String name) {
+		return histograms.get(name);
+	}
+
+	public Map<String, SherpaLatencyHistogram> histograms() {
+		return Collections.unmodifiableMap(histograms);
+	}
+
+	@Override
+	public void sherpaProtocolError() {
+		if (next != null) {
+			next.sherpaProtocolError();
+		}
+	}
+
+	@Override
+	public void sherpaBadFunction() {
+		if (next != null) {
+			next.sherpaBadFunction();
+		}
+	}
+
+	@Override
+	public void sherpaJavascript() {
+		if (next != null) {
+			next.sherpaJavascript();
+		}
+	}
+
+	@Override
+	public void sherpaJSON() {
+		if (next != null) {
+			next.sherpaJSON();
+		}
+	}
+
+	@Override
+	public void sherpaFunctionCalled(String name, boolean error, boolean serverError, double duration) {
+		if (next != null) {
+			next.sherpaFunctionCalled(name, error, serverError, duration);
+		}
+	}
+
+	@Override
+	public void sherpaFunctionTimed(SherpaCallStats stats) {
+		SherpaLatencyHistogram h = histograms.get(stats.name);
+		if (h == null) {
+			h = histograms.computeIfAbsent(stats.name, k -> new SherpaLatencyHistogram());
+		}
+		h.record(stats.totalNanos);
+		if (next != null) {
+			next.sherpaFunctionTimed(stats);
+		}
+	}
+
+	@Override
+	public void sherpaFunctionRejected(String name) {
+		if (next != null) {
+			next.sherpaFunctionRejected(name);
+		}
+	}
+
+	@Override
+	public void sherpaFunctionTimeout(String name) {
+		if (next != null) {
+			next.sherpaFunctionTimeout(name);
+		}
+	}
+
+	@Override
+	public void sherpaFunctionRateLimited(String name) {
+		if (next != null) {
+			next.sherpaFunctionRateLimited(name);
+		}
+	}
+
+	@Override
+	public void sherpaCacheHit(String name) {
+		if (next != null) {
+			next.sherpaCacheHit(name);
+		}
+	}
+
+	@Override
+	public void sherpaCacheMiss(String name) {
+		if (next != null) {
+			next.sherpaCacheMiss(name);
+		}
+	}
+
+	@Override
+	public void sherpaResponseBuffered(boolean pooled, int grown, boolean streamed) {
+		if (next != null) {
+			next.sherpaResponseBuffered(pooled, grown, streamed);
+		}
+	}
+
+	@Override
+	public void sherpaSubscriptionEnded(String name, long events, long rejected) {
+		if (next != null) {
+			next.sherpaSubscriptionEnded(name, events, rejected);
+		}
+	}
+}
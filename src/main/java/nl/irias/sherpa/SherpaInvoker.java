@@ -0,0 +1,49 @@
+package nl.irias.sherpa;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+// SherpaInvoker calls an exported static function.
+// Like Method.invoke, exceptions raised by the function are wrapped in an InvocationTargetException.
+@FunctionalInterface
+interface SherpaInvoker {
+	Object invoke(Object[] params) throws InvocationTargetException, IllegalAccessException;
+
+	static SherpaInvoker reflective(Method m) {
+		return (Object[] params) -> m.invoke(null, params);
+	}
+
+	// methodHandle returns an invoker with the access check done once, up front.
+	// it falls back to a reflective invoker for methods we cannot access, so those fail at call time as before.
+	static SherpaInvoker methodHandle(Method m) {
+		MethodHandle mh;
+		try {
+			mh = MethodHandles.publicLookup().unreflect(m)
+				.asSpreader(Object[].class, m.getParameterCount())
+				.asType(MethodType.methodType(Object.class, Object[].class));
+		} catch (IllegalAccessException e) {
+			return reflective(m);
+		}
+		return (Object[] params) -> {
+			try {
+				return (Object)mh.invokeExact(params);
+			} catch (Throwable t) {
+				throw new InvocationTargetException(t);
+			}
+		};
+	}
+
+	// generated returns an invoker for a function of a generated dispatcher, which calls the method directly.
+	static SherpaInvoker generated(SherpaDispatcher.Invoker invoker) {
+		return (Object[] params) -> {
+			try {
+				return invoker.invoke(params);
+			} catch (Throwable t) {
+				throw new InvocationTargetException(t);
+			}
+		};
+	}
+}
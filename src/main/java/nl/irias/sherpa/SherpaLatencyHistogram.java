@@ -0,0 +1,94 @@
+package nl.irias.sherpa;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// SherpaLatencyHistogram records durations in nanoseconds into log-linear buckets, like HdrHistogram.
+// Each power of two is split into 32 buckets, so values are accurate to within about 3%.
+// Recording is lock-free and safe to use from many threads.
+public class SherpaLatencyHistogram {
+	static final int SUB_BITS = 5;
+	static final int SUB_COUNT = 1 << SUB_BITS;
+	static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+	final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	final LongAdder total = new LongAdder();
+	final LongAdder sum = new LongAdder();
+	final AtomicLong max = new AtomicLong();
+
+	static int bucket(long v) {
+		if (v < SUB_COUNT) {
+			return (int)Math.max(v, 0);
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(v);
+		int sub = (int)(v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	// highest value that ends up in bucket i.
+	static long bucketMax(int i) {
+		if (i < SUB_COUNT) {
+			return i;
+		}
+		int shift = i / SUB_COUNT - 1;
+		long lower = (long)(SUB_COUNT + i % SUB_COUNT) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	public void record(long nanos) {
+		counts.incrementAndGet(bucket(nanos));
+		total.increment();
+		sum.add(nanos);
+		long m = max.get();
+		while (nanos > m && !max.compareAndSet(m, nanos)) {
+			m = max.get();
+		}
+	}
+
+	public long count() {
+		return total.sum();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	public double mean() {
+		long n = count();
+		return n == 0 ? 0 : (double)sum.sum() / n;
+	}
+
+	// percentile returns the duration in nanoseconds at or below which "percentile" (0-100) of the recorded durations fall.
+	// concurrent recordings may or may not be included.
+	public long percentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long want = Math.max(1, (long)Math.ceil(Math.min(percentile, 100) / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= want) {
+				return Math.min(bucketMax(i), max());
+			}
+		}
+		return max();
+	}
+
+	// countAtOrBelow returns the number of recorded durations that are at most "nanos", rounded up to the bucket that "nanos" falls in.
+	public long countAtOrBelow(long nanos) {
+		int last = bucket(nanos);
+		long n = 0;
+		for (int i = 0; i <= last; i++) {
+			n += counts.get(i);
+		}
+		return n;
+	}
+}
@@ -0,0 +1,363 @@
+package nl.irias.sherpa;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// SherpaMetrics counts calls, errors and latencies for the _metrics endpoint, in Prometheus text exposition format.
+// It is a collector that passes all events on to the next collector.
+// Counters are LongAdders, so recording is cheap even under contention.
+class SherpaMetrics implements SherpaCollector {
+	// upper bounds of the latency buckets, in seconds.
+	static final double[] BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+	static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+	static {
+		for (int i = 0; i < BUCKETS.length; i++) {
+			BUCKET_NANOS[i] = (long)(BUCKETS[i] * 1e9);
+		}
+	}
+
+	static class Function {
+		final String name;
+		final LongAdder calls = new LongAdder();
+		final LongAdder userErrors = new LongAdder();
+		final LongAdder serverErrors = new LongAdder();
+		final LongAdder rejected = new LongAdder();
+		final LongAdder rateLimited = new LongAdder();
+		final LongAdder timeouts = new LongAdder();
+		final LongAdder cacheHits = new LongAdder();
+		final LongAdder cacheMisses = new LongAdder();
+		final LongAdder subscriptions = new LongAdder(); // open subscriptions, a gauge
+		final LongAdder events = new LongAdder();
+		final LongAdder eventsRejected = new LongAdder();
+		final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1]; // last is +Inf
+		final LongAdder durationNanos = new LongAdder();
+		final LongAdder timed = new LongAdder();
+
+		Function(String name) {
+			this.name = name;
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void called(boolean error, boolean serverError) {
+			calls.increment();
+			if (serverError) {
+				serverErrors.increment();
+			} else if (error) {
+				userErrors.increment();
+			}
+		}
+
+		void timed(long nanos) {
+			int i = 0;
+			while (i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i]) {
+				i++;
+			}
+			buckets[i].increment();
+			durationNanos.add(nanos);
+			timed.increment();
+		}
+	}
+
+	final SherpaCollector next;
+	final LongAdder protocolErrors = new LongAdder();
+	final LongAdder badFunctions = new LongAdder();
+	final LongAdder javascript = new LongAdder();
+	final LongAdder json = new LongAdder();
+	final LongAdder buffers = new LongAdder();
+	final LongAdder bufferPoolHits = new LongAdder();
+	final LongAdder bufferGrows = new LongAdder();
+	final LongAdder bufferStreamed = new LongAdder();
+	final Map<String, Function> functions; // fixed after construction
+
+	SherpaMetrics(Collection<String> names, SherpaCollector next) {
+		this.next = next;
+		this.functions = new HashMap<>();
+		for (String name : names) {
+			this.functions.put(name, new Function(name));
+		}
+	}
+
+	@Override
+	public void sherpaProtocolError() {
+		protocolErrors.increment();
+		next.sherpaProtocolError();
+	}
+
+	@Override
+	public void sherpaBadFunction() {
+		badFunctions.increment();
+		next.sherpaBadFunction();
+	}
+
+	@Override
+	public void sherpaJavascript() {
+		javascript.increment();
+		next.sherpaJavascript();
+	}
+
+	@Override
+	public void sherpaJSON() {
+		json.increment();
+		next.sherpaJSON();
+	}
+
+	@Override
+	public void sherpaFunctionCalled(String name, boolean error, boolean serverError, double duration) {
+		Function f = functions.get(name);
+		if (f != null) {
+			f.called(error, serverError);
+		}
+		next.sherpaFunctionCalled(name, error, serverError, duration);
+	}
+
+	@Override
+	public void sherpaFunctionTimed(SherpaCallStats stats) {
+		Function f = functions.get(stats.name);
+		if (f != null) {
+			f.timed(stats.totalNanos);
+		}
+		next.sherpaFunctionTimed(stats);
+	}
+
+	@Override
+	public void sherpaFunctionRejected(String name) {
+		Function f = functions.get(name);
+		if (f != null) {
+			f.rejected.increment();
+		}
+		next.sherpaFunctionRejected(name);
+	}
+
+	@Override
+	public void sherpaFunctionRateLimited(String name) {
+		Function f = functions.get(name);
+		if (f != null) {
+			f.rateLimited.increment();
+		}
+		next.sherpaFunctionRateLimited(name);
+	}
+
+	@Override
+	public void sherpaFunctionTimeout(String name) {
+		Function f = functions.get(name);
+		if (f != null) {
+			f.timeouts.increment();
+		}
+		next.sherpaFunctionTimeout(name);
+	}
+
+	@Override
+	public void sherpaCacheHit(String name) {
+		Function f = functions.get(name);
+		if (f != null) {
+			f.cacheHits.increment();
+		}
+		next.sherpaCacheHit(name);
+	}
+
+	@Override
+	public void sherpaCacheMiss(String name) {
+		Function f = functions.get(name);
+		if (f != null) {
+			f.cacheMisses.increment();
+		}
+		next.sherpaCacheMiss(name);
+	}
+
+	@Override
+	public void sherpaSubscriptionEnded(String name, long events, long rejected) {
+		next.sherpaSubscriptionEnded(name, events, rejected);
+	}
+
+	@Override
+	public void sherpaResponseBuffered(boolean pooled, int grown, boolean streamed) {
+		buffers.increment();
+		if (pooled) {
+			bufferPoolHits.increment();
+		}
+		if (grown > 0) {
+			bufferGrows.add(grown);
+		}
+		if (streamed) {
+			bufferStreamed.increment();
+		}
+		next.sherpaResponseBuffered(pooled, grown, streamed);
+	}
+
+	// the events below have the Function looked up already, in the dispatch table of the servlet.
+
+	void called(Function f, boolean error, boolean serverError, double duration) {
+		f.called(error, serverError);
+		next.sherpaFunctionCalled(f.name, error, serverError, duration);
+	}
+
+	void timed(Function f, SherpaCallStats stats) {
+		f.timed(stats.totalNanos);
+		next.sherpaFunctionTimed(stats);
+	}
+
+	void rejected(Function f) {
+		f.rejected.increment();
+		next.sherpaFunctionRejected(f.name);
+	}
+
+	void rateLimited(Function f) {
+		f.rateLimited.increment();
+		next.sherpaFunctionRateLimited(f.name);
+	}
+
+	void timeout(Function f) {
+		f.timeouts.increment();
+		next.sherpaFunctionTimeout(f.name);
+	}
+
+	void cacheHit(Function f) {
+		f.cacheHits.increment();
+		next.sherpaCacheHit(f.name);
+	}
+
+	void cacheMiss(Function f) {
+		f.cacheMisses.increment();
+		next.sherpaCacheMiss(f.name);
+	}
+
+	void subscribed(Function f) {
+		f.subscriptions.increment();
+	}
+
+	void event(Function f) {
+		f.events.increment();
+	}
+
+	void eventRejected(Function f) {
+		f.eventsRejected.increment();
+	}
+
+	void unsubscribed(Function f, long events, long rejected) {
+		f.subscriptions.decrement();
+		next.sherpaSubscriptionEnded(f.name, events, rejected);
+	}
+
+	String format() {
+		StringBuilder sb = new StringBuilder();
+		Map<String, Function> sorted = new TreeMap<>(functions);
+
+		header(sb, "sherpa_function_calls_total", "counter", "Number of calls per function.");
+		for (Function f : sorted.values()) {
+			sample(sb, "sherpa_function_calls_total", f.name, null, f.calls.sum());
+		}
+		header(sb, "sherpa_function_user_errors_total", "counter", "Number of calls per function that failed with a user error, including bad requests.");
+		for (Function f : sorted.values()) {
+			sample(sb, "sherpa_function_user_errors_total", f.name, null, f.userErrors.sum());
+		}
+		header(sb, "sherpa_function_server_errors_total", "counter", "Number of calls per function that failed with a server error.");
+		for (Function f : sorted.values()) {
+			sample(sb, "sherpa_function_server_errors_total", f.name, null, f.serverErrors.sum());
+		}
+		header(sb, "sherpa_function_rejected_total", "counter", "Number of calls per function rejected because of a concurrency limit or overload.");
+		for (Function f : sorted.values()) {
+			sample(sb, "sherpa_function_rejected_total", f.name, null, f.rejected.sum());
+		}
+		header(sb, "sherpa_function_rate_limited_total", "counter", "Number of calls per function rejected because the client exceeded its rate limit.");
+		for (Function f : sorted.values()) {
+			sample(sb, "sherpa_function_rate_limited_total", f.name, null, f.rateLimited.sum());
+		}
+		header(sb, "sherpa_function_timeouts_total", "counter", "Number of calls per function that timed out in async mode.");
+		for (Function f : sorted.values()) {
+			sample(sb, "sherpa_function_timeouts_total", f.name, null, f.timeouts.sum());
+		}
+		header(sb, "sherpa_function_cache_hits_total", "counter", "Number of calls per function answered from the result cache.");
+		for (Function f : sorted.values()) {
+			sample(sb, "sherpa_function_cache_hits_total", f.name, null, f.cacheHits.sum());
+		}
+		header(sb, "sherpa_function_cache_misses_total", "counter", "Number of calls per function with a result cache that were not in the cache.");
+		for (Function f : sorted.values()) {
+			sample(sb, "sherpa_function_cache_misses_total", f.name, null, f.cacheMisses.sum());
+		}
+		header(sb, "sherpa_function_subscriptions", "gauge", "Number of open subscriptions per function that publishes events.");
+		for (Function f : sorted.values()) {
+			sample(sb, "sherpa_function_subscriptions", f.name, null, f.subscriptions.sum());
+		}
+		header(sb, "sherpa_function_events_total", "counter", "Number of events sent per function that publishes events.");
+		for (Function f : sorted.values()) {
+			sample(sb, "sherpa_function_events_total", f.name, null, f.events.sum());
+		}
+		header(sb, "sherpa_function_events_rejected_total", "counter", "Number of values rejected per function that publishes events, because a client did not keep up.");
+		for (Function f : sorted.values()) {
+			sample(sb, "sherpa_function_events_rejected_total", f.name, null, f.eventsRejected.sum());
+		}
+
+		header(sb, "sherpa_function_duration_seconds", "histogram", "Duration of calls per function, from reading the request until the response was written.");
+		for (Function f : sorted.values()) {
+			long n = 0;
+			for (int i = 0; i < BUCKETS.length; i++) {
+				n += f.buckets[i].sum();
+				sample(sb, "sherpa_function_duration_seconds_bucket", f.name, Double.toString(BUCKETS[i]), n);
+			}
+			n += f.buckets[BUCKETS.length].sum();
+			sample(sb, "sherpa_function_duration_seconds_bucket", f.name, "+Inf", n);
+			sb.append("sherpa_function_duration_seconds_sum{function=\"");
+			escape(sb, f.name);
+			sb.append("\"} ").append(f.durationNanos.sum() / 1e9).append('\n');
+			sample(sb, "sherpa_function_duration_seconds_count", f.name, null, n);
+		}
+
+		header(sb, "sherpa_protocol_errors_total", "counter", "Number of requests that did not follow the sherpa protocol.");
+		sample(sb, "sherpa_protocol_errors_total", null, null, protocolErrors.sum());
+		header(sb, "sherpa_bad_function_total", "counter", "Number of calls to functions that do not exist.");
+		sample(sb, "sherpa_bad_function_total", null, null, badFunctions.sum());
+		header(sb, "sherpa_javascript_total", "counter", "Number of requests for sherpa.js.");
+		sample(sb, "sherpa_javascript_total", null, null, javascript.sum());
+		header(sb, "sherpa_json_total", "counter", "Number of requests for sherpa.json.");
+		sample(sb, "sherpa_json_total", null, null, json.sum());
+		header(sb, "sherpa_response_buffers_total", "counter", "Number of responses serialized into a buffer before sending.");
+		sample(sb, "sherpa_response_buffers_total", null, null, buffers.sum());
+		header(sb, "sherpa_response_buffer_pool_hits_total", "counter", "Number of response buffers reused from the pool instead of allocated.");
+		sample(sb, "sherpa_response_buffer_pool_hits_total", null, null, bufferPoolHits.sum());
+		header(sb, "sherpa_response_buffer_grows_total", "counter", "Number of times a response buffer had to grow.");
+		sample(sb, "sherpa_response_buffer_grows_total", null, null, bufferGrows.sum());
+		header(sb, "sherpa_response_buffer_streamed_total", "counter", "Number of responses too large for a buffer, that were streamed instead.");
+		sample(sb, "sherpa_response_buffer_streamed_total", null, null, bufferStreamed.sum());
+		return sb.toString();
+	}
+
+	private static void header(StringBuilder sb, String metric, String type, String help) {
+		sb.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder sb, String metric, String function, String le, long value) {
+		sb.append(metric);
+		if (function != null) {
+			sb.append("{function=\"");
+			escape(sb, function);
+			sb.append('"');
+			if (le != null) {
+				sb.append(",le=\"").append(le).append('"');
+			}
+			sb.append('}');
+		}
+		sb.append(' ').append(value).append('\n');
+	}
+
+	// escape appends a label value, with backslash, double quote and newline escaped as the text format requires.
+	static void escape(StringBuilder sb, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\') {
+				sb.append("\\\\");
+			} else if (c == '"') {
+				sb.append("\\\"");
+			} else if (c == '\n') {
+				sb.append("\\n");
+			} else {
+				sb.append(c);
+			}
+		}
+	}
+}
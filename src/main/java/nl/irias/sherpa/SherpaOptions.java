@@ -0,0 +1,93 @@
+package nl.irias.sherpa;
+
+import java.util.concurrent.Executor;
+
+// SherpaOptions holds tunables for SherpaServlet. Change the fields before passing the options to the SherpaServlet constructor.
+public class SherpaOptions {
+	// Use the dispatchers generated by SherpaProcessor at compile time, see SherpaDispatcher, so functions are registered and called without reflection.
+	// Sections without a generated dispatcher are scanned for functions through reflection.
+	public boolean generatedDispatchers = true;
+
+	// Call functions found through reflection with java.lang.reflect.Method.invoke instead of pre-bound method handles.
+	public boolean reflectiveInvoke = false;
+
+	// Serve call counts, error counts and latencies in Prometheus text format at the reserved path "_metrics". Off by default, the counters show which functions exist and how they are used.
+	public boolean metricsEndpoint = false;
+
+	// Keep the last recentCalls calls, and the last slowCalls calls that took at least slowCallThreshold milliseconds, for SherpaServlet.recentCalls and slowCalls.
+	// Slow calls are logged, and kept with their parameters if the function allows logging them. Zero for recentCalls or slowCallThreshold disables keeping those calls.
+	// With debugEndpoint, both are served as JSON at the reserved path "_debug/slow". Only enable it if the parameters may be seen by anyone who can reach the servlet.
+	public int recentCalls = 100;
+	public long slowCallThreshold = 1000;
+	public int slowCalls = 100;
+	public boolean debugEndpoint = false;
+
+	// Handle function calls asynchronously: read the request with non-blocking IO, call the function on "executor", and write the response with non-blocking IO.
+	// Container threads are then not held while functions run. The servlet must be registered with async support, otherwise calls are handled synchronously.
+	public boolean async = false;
+
+	// Executor to call functions on in async mode. If null, a virtual thread per call is used on JDKs that have them, otherwise a pool of at most asyncThreads threads.
+	// Calls that cannot be scheduled fail with error code "sherpaOverloaded".
+	public Executor executor = null;
+	public int asyncThreads = 200;
+
+	// Timeout in milliseconds for function calls in async mode, after which the call fails with error code "sherpaTimeout". Zero means no timeout.
+	// Can be overridden per function with @SherpaFunction(timeout=...).
+	public long timeout = 0;
+
+	// For functions that return a SherpaPublisher: at most eventQueue values are queued per subscription while the client is not reading fast enough, further values are rejected.
+	// While nothing else is sent, a heartbeat is sent every eventHeartbeat milliseconds, so connections aren't closed by proxies for being idle, and a client that went away is noticed. Zero disables heartbeats.
+	public int eventQueue = 100;
+	public long eventHeartbeat = 15000;
+
+	// Maximum number of calls in a request to the reserved function "_batch". Zero disables batches.
+	public int batchMaxCalls = 100;
+
+	// Number of calls of a batch to run at the same time. Above 1, calls run in parallel on "executor" (or the executor created for async mode).
+	public int batchConcurrency = 1;
+
+	// Compress responses with gzip or deflate, as accepted by the client. Responses smaller than compressThreshold bytes are sent uncompressed.
+	// The threshold can be overridden per function with @SherpaFunction(compressThreshold=...).
+	public boolean compression = true;
+	public int compressThreshold = 1024;
+
+	// Responses up to responseBufferBytes are serialized in full before sending, so they are sent with a Content-Length, in a single write.
+	// Larger responses are streamed while they are serialized, without Content-Length, as are streaming results and batches. Zero streams all responses.
+	// The buffers are reused for later responses, at most responseBuffers are kept. Reuse and growth of buffers are reported to the collector.
+	public int responseBufferBytes = 64*1024;
+	public int responseBuffers = 64;
+
+	// Accept requests and write responses in CBOR (application/cbor) and Smile (application/x-jackson-smile) besides JSON, for service-to-service calls.
+	// The format of a request is taken from its Content-Type, the response has the first supported format in Accept, or the format of the request.
+	// A format is only available when its Jackson dataformat module (jackson-dataformat-cbor, jackson-dataformat-smile) is on the classpath.
+	public boolean binaryFormats = true;
+
+	// Maximum size in bytes of a request body, or of the "body" parameter of a GET request. Zero, the default, means no limit.
+	// Larger requests fail with error code "sherpaBadRequest" without being parsed, based on Content-Length if present, otherwise while reading.
+	// Can be overridden per function with @SherpaFunction(maxRequestBytes=...). Batches are limited by this global maximum.
+	public int maxRequestBytes = 0;
+
+	// Maximum nesting of objects and arrays in a request, and maximum number of elements of an array in a request. Zero, the default, means no limit.
+	// The depth limit protects the recursive parsing of parameters against stack exhaustion, e.g. 64. Arrays are limited by maxRequestBytes already.
+	public int maxJsonDepth = 0;
+	public int maxArrayLength = 0;
+
+	// Maximum number of calls running at the same time, over all functions. Zero means no limit.
+	// When the limit is reached, at most maxQueued calls wait for at most queueTimeout milliseconds, other calls fail with error code "sherpaOverloaded" and HTTP status 503.
+	// With adaptiveConcurrency, the limit is lowered while latency is high, and raised back up to maxConcurrent while it is low.
+	// Functions can have their own limits with @SherpaFunction(maxConcurrent=...), calls over those fail with HTTP status 429.
+	public int maxConcurrent = 0;
+	public int maxQueued = 0;
+	public long queueTimeout = 0;
+	public boolean adaptiveConcurrency = false;
+
+	// Seconds after which clients may retry calls that failed due to concurrency limits, for the Retry-After header.
+	public int retryAfter = 1;
+
+	// Identifies clients for rate limits set with @SherpaFunction(rateLimit=...). Null means the address of the connection.
+	// Use SherpaClientKey.forwardedFor() behind a proxy, or SherpaClientKey.header(...) for a token.
+	public SherpaClientKey clientKey = null;
+
+	// Maximum number of clients to keep rate limit state for, per function. Beyond that, the least recently seen clients are forgotten.
+	public int rateLimitMaxClients = 100000;
+}
@@ -0,0 +1,10 @@
+package nl.irias.sherpa;
+
+import java.util.function.Consumer;
+
+// SherpaProducer can be returned by a function to stream a large result: produce is called with a sink that serializes each element into the response directly.
+// An exception thrown by produce ends the result, the elements produced so far are kept and the response gets the error.
+@FunctionalInterface
+public interface SherpaProducer<T> {
+	void produce(Consumer<? super T> sink) throws Exception;
+}
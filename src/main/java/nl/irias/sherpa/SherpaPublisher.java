@@ -0,0 +1,10 @@
+package nl.irias.sherpa;
+
+// SherpaPublisher can be returned by a function to push results to the client as server-sent events, for as long as the client stays subscribed.
+// subscribe is called once, with the subscriber for the client. It can send values right away, or keep the subscriber and send values later, from any thread.
+// subscribe should not block. An exception thrown by subscribe ends the subscription with the error.
+// Functions returning a SherpaPublisher are called with GET and "Accept: text/event-stream", e.g. through subscribe in sherpa.js.
+@FunctionalInterface
+public interface SherpaPublisher<T> {
+	void subscribe(SherpaSubscriber<? super T> subscriber) throws Exception;
+}
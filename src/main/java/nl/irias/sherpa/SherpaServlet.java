@@ -2,26 +2,51 @@ package nl.irias.sherpa;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.io.OutputStream;
 import java.io.InputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
 
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.type.TypeFactory;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -35,20 +60,43 @@ public class SherpaServlet extends HttpServlet {
 	String rawHtml; // still needs docsURL filled in
 	String rawJavascript; // still needs json filled in
 	SherpaJSON sherpaJson; // baseurl will be filled in with just the path.  before returning data, the path will be prefixed by the host to which the http request was sent.
-	Map<String, Method> functions;
-	Set<String> logParameterFunctions;
-	Set<String> logResultFunctions;
+	Map<String, Endpoint> endpoints; // the dispatch table, by path info, e.g. "/add". not changed after construction.
+	WireFormat json;
+	Map<String, WireFormat> formats; // by media type, json and the available binary formats
 	SherpaDoc documentation;
 	ThrowableFormatter throwableFormatter;
-	SherpaCollector collector;
+	SherpaCollector collector; // the metrics, which pass events on to the collector passed to the constructor.
+	SherpaMetrics metrics;
 	String lastModified;
 	SherpaExceptionTransformer exceptionTransformer;
+	SherpaOptions options;
+
+	// mapper is only used to derive readers & writers from at construction time, those are immutable and cache their (de)serializers.
+	ObjectMapper mapper;
+	boolean rateLimited; // whether any function has a rate limit
+	SherpaClientKey clientKey;
+	Bulkhead globalLimit; // null without limit
+	Map<String, RenderedPage> pages; // sherpa.js, sherpa.json and the html page, by path and base url
+	BufferPool bufferPool; // for serializing responses, see ResponseBuffer
+	CallLog callLog; // recent and slow calls
+
+	Executor executor; // for async mode and parallel batches
+	ExecutorService ownExecutor; // set if we created the executor, to shut it down
+	ScheduledExecutorService heartbeats; // for subscriptions to functions that publish events, null if there are none or heartbeats are disabled
+	ObjectWriter responseWriter;
+	ObjectWriter sherpaJsonWriter;
+	ObjectWriter logWriter;
 
 
 	final String SHERPA_BAD_FUNCTION = "sherpaBadFunction";
 	final String SHERPA_BAD_REQUEST = "sherpaBadRequest";
 	final String SHERPA_BAD_PARAMS = "sherpaBadParams";
 	final String SHERPA_SERVER_ERROR = "sherpaServerError";
+	final String SHERPA_OVERLOADED = "sherpaOverloaded";
+	final String SHERPA_TIMEOUT = "sherpaTimeout";
+	final String SHERPA_RATE_LIMITED = "sherpaRateLimited";
+
+	static final int SC_TOO_MANY_REQUESTS = 429; // not in servlet 3.1
 
 	final static Logger logger = Logger.getLogger(SherpaServlet.class.getPackage().getName());
 
@@ -81,19 +129,45 @@ public class SherpaServlet extends HttpServlet {
 		public String baseurl;
 		public String version;
 		final public int sherpaVersion = 0;
+		// functions without side effects, with the number of seconds clients may cache their results, zero if they should not, see cacheable().
+		public Map<String, Integer> cacheable;
 
-		public SherpaJSON(String id, String title, String[] functions, String baseurl, String version) {
+		public SherpaJSON(String id, String title, String[] functions, String baseurl, String version, Map<String, Integer> cacheable) {
 			this.id = id;
 			this.title = title;
 			this.functions = functions;
 			this.baseurl = baseurl;
 			this.version = version;
+			this.cacheable = cacheable;
 		}
 	}
 
 	public SherpaServlet(String path, String id, String title, String version, Class<?>[] sections, SherpaDoc sherpaDoc, ThrowableFormatter throwableFormatter, SherpaCollector collector, SherpaExceptionTransformer exceptionTransformer) throws Exception {
+		this(path, id, title, version, sections, sherpaDoc, throwableFormatter, collector, exceptionTransformer, null);
+	}
+
+	// mapper can be a pre-configured ObjectMapper, e.g. with modules registered. it must not be reconfigured after passing it in. if null, a default ObjectMapper is used.
+	public SherpaServlet(String path, String id, String title, String version, Class<?>[] sections, SherpaDoc sherpaDoc, ThrowableFormatter throwableFormatter, SherpaCollector collector, SherpaExceptionTransformer exceptionTransformer, ObjectMapper mapper) throws Exception {
+		this(path, id, title, version, sections, sherpaDoc, throwableFormatter, collector, exceptionTransformer, mapper, null);
+	}
+
+	// options can be null, for the defaults.
+	public SherpaServlet(String path, String id, String title, String version, Class<?>[] sections, SherpaDoc sherpaDoc, ThrowableFormatter throwableFormatter, SherpaCollector collector, SherpaExceptionTransformer exceptionTransformer, ObjectMapper mapper, SherpaOptions options) throws Exception {
 		documentation = sherpaDoc;
 
+		if (options == null) {
+			options = new SherpaOptions();
+		}
+		this.options = options;
+
+		if (mapper == null) {
+			mapper = new ObjectMapper();
+		}
+		this.mapper = mapper;
+		this.responseWriter = mapper.writerFor(SherpaResponse.class).without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		this.sherpaJsonWriter = mapper.writerFor(SherpaJSON.class);
+		this.logWriter = mapper.writer();
+
 		lastModified = java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME.format(java.time.ZonedDateTime.now(java.time.ZoneId.of("GMT")));
 
 		if (throwableFormatter == null) {
@@ -105,15 +179,29 @@ public class SherpaServlet extends HttpServlet {
 			throw new Exception("At least one sherpa section is required.");
 		}
 
-		this.functions = new HashMap<>();
-		this.logParameterFunctions = new HashSet<>();
-		this.logResultFunctions = new HashSet<>();
+		Map<String, Endpoint> endpoints = new HashMap<>();
+		List<String> names = new ArrayList<>();
+		this.clientKey = options.clientKey != null ? options.clientKey : SherpaClientKey.remoteAddress();
+		if (options.maxConcurrent > 0) {
+			this.globalLimit = new Bulkhead(options.maxConcurrent, options.maxQueued, options.queueTimeout, options.adaptiveConcurrency);
+		}
+		this.pages = new ConcurrentHashMap<>();
+		this.bufferPool = new BufferPool(options.responseBuffers, 4*1024);
+		this.callLog = new CallLog(options.recentCalls, options.slowCallThreshold, options.slowCalls, logWriter);
 		for (Class<?> c : sections) {
 			java.lang.annotation.Annotation _section = c.getAnnotation(SherpaSection.class);
 			if (_section == null) {
 				throw new Exception("Section does not have SherpaSection annotation. Use @SherpaSection(title=\"...\", docs=\"...\").");
 			}
 
+			SherpaDispatcher dispatcher = options.generatedDispatchers ? SherpaDispatcher.load(c) : null;
+			if (dispatcher != null) {
+				for (SherpaDispatcher.Function f : dispatcher.functions()) {
+					addFunction(endpoints, names, f, SherpaInvoker.generated(f.invoker), f.version != null ? SherpaInvoker.generated(f.version) : null);
+				}
+				continue;
+			}
+
 			for (Method m : c.getDeclaredMethods()) {
 				SherpaFunction fn = m.getAnnotation(SherpaFunction.class);
 				if (fn == null) {
@@ -126,21 +214,24 @@ public class SherpaServlet extends HttpServlet {
 					throw new Exception(String.format("Function %s must be static if you want to export it as Sherpa function.", name));
 				}
 
-				if (this.functions.containsKey(name)) {
-					throw new Exception(String.format("Duplicate function name %s.", name));
-				}
-
-				this.functions.put(name, m);
-				if (fn.logParameters()) {
-					this.logParameterFunctions.add(name);
-				}
-				if (fn.logResult()) {
-					this.logResultFunctions.add(name);
+				SherpaInvoker versionInvoker = null;
+				if (fn.httpMaxAge() > 0 && !fn.httpVersion().equals("")) {
+					Method vm;
+					try {
+						vm = c.getDeclaredMethod(fn.httpVersion(), m.getParameterTypes());
+					} catch (NoSuchMethodException ex) {
+						throw new Exception(String.format("Version function %s for function %s not found, it must have the same parameters.", fn.httpVersion(), name));
+					}
+					if (!Modifier.isStatic(vm.getModifiers())) {
+						throw new Exception(String.format("Version function %s for function %s must be static.", fn.httpVersion(), name));
+					}
+					versionInvoker = invoker(vm);
 				}
+				addFunction(endpoints, names, new SherpaDispatcher.Function(m, fn), invoker(m), versionInvoker);
 			}
 		}
 
-		this.sherpaJson = new SherpaJSON(id, title, this.functions.keySet().toArray(new String[]{}), path, version);
+		this.sherpaJson = new SherpaJSON(id, title, names.toArray(new String[]{}), path, version, cacheable(endpoints, names));
 
 		try (InputStream htmlStream = SherpaServlet.class.getClassLoader().getResourceAsStream("nl/irias/sherpa/index.html")) {
 			this.rawHtml = readAll(htmlStream)
@@ -151,18 +242,423 @@ public class SherpaServlet extends HttpServlet {
 		}
 
 		try (InputStream stream = SherpaServlet.class.getClassLoader().getResourceAsStream("nl/irias/sherpa/sherpa.js")) {
-			this.rawJavascript = readAll(stream);
+			this.rawJavascript = readAll(stream).replace("SHERPA_BATCH", Integer.toString(options.batchMaxCalls));
 		}
 
 		if (collector == null) {
 			collector = new DefaultCollector();
 		}
-		this.collector = collector;
+		List<String> metricNames = new ArrayList<>(names);
+		metricNames.add("_docs");
+		this.metrics = new SherpaMetrics(metricNames, collector);
+		this.collector = this.metrics;
+
+		// reserved paths. functions with the same name as a reserved path take precedence, as before the dispatch table.
+		reserve(endpoints, Endpoint.Kind.HTML, "");
+		reserve(endpoints, Endpoint.Kind.JAVASCRIPT, "sherpa.js");
+		reserve(endpoints, Endpoint.Kind.JSON, "sherpa.json");
+		if (documentation != null) {
+			reserve(endpoints, Endpoint.Kind.DOCS, "_docs");
+		}
+		if (options.batchMaxCalls > 0) {
+			reserve(endpoints, Endpoint.Kind.BATCH, "_batch");
+		}
+		if (options.metricsEndpoint) {
+			reserve(endpoints, Endpoint.Kind.METRICS, "_metrics");
+		}
+		if (options.debugEndpoint) {
+			reserve(endpoints, Endpoint.Kind.DEBUG, "_debug/slow");
+		}
+		for (Endpoint e : endpoints.values()) {
+			e.metrics = this.metrics.functions.get(e.name);
+		}
+		this.endpoints = Collections.unmodifiableMap(endpoints);
+
+		this.json = new WireFormat("application/json", "application/json; charset=utf-8", mapper.getFactory());
+		this.formats = new HashMap<>();
+		this.formats.put(json.mediaType, json);
+		if (options.binaryFormats) {
+			for (WireFormat f : new WireFormat[]{WireFormat.load(WireFormat.CBOR, "com.fasterxml.jackson.dataformat.cbor.CBORFactory"), WireFormat.load(WireFormat.SMILE, "com.fasterxml.jackson.dataformat.smile.SmileFactory")}) {
+				if (f != null) {
+					this.formats.put(f.mediaType, f);
+				}
+			}
+		}
+		for (WireFormat f : this.formats.values()) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			f.write(out, responseWriter, new SherpaResponse(null, new SherpaError(SHERPA_BAD_FUNCTION, "function does not exit")));
+			f.badFunction = out.toByteArray();
+		}
 
 		if (exceptionTransformer == null) {
 			exceptionTransformer = (Exception e) -> e;
 		}
 		this.exceptionTransformer = exceptionTransformer;
+
+		if (options.eventHeartbeat > 0 && endpoints.values().stream().anyMatch((Endpoint e) -> e.publish)) {
+			this.heartbeats = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+				Thread t = new Thread(r, "sherpa-heartbeat");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+
+		if (options.async || options.batchConcurrency > 1) {
+			this.executor = options.executor;
+			if (this.executor == null) {
+				this.ownExecutor = newExecutor(options.asyncThreads);
+				this.executor = this.ownExecutor;
+			}
+		}
+	}
+
+	private SherpaInvoker invoker(Method m) {
+		return options.reflectiveInvoke ? SherpaInvoker.reflective(m) : SherpaInvoker.methodHandle(m);
+	}
+
+	// addFunction adds a function to the dispatch table, with readers and writer for its types, and its limits and caches.
+	private void addFunction(Map<String, Endpoint> endpoints, List<String> names, SherpaDispatcher.Function f, SherpaInvoker invoker, SherpaInvoker versionInvoker) throws Exception {
+		String name = f.name;
+		if (endpoints.containsKey("/" + name)) {
+			throw new Exception(String.format("Duplicate function name %s.", name));
+		}
+
+		Endpoint e = new Endpoint(Endpoint.Kind.FUNCTION, name);
+		endpoints.put("/" + name, e);
+		names.add(name);
+		e.invoker = invoker;
+
+		// resolve full generic types, so we bind to e.g. List<Order> and not just List.
+		TypeFactory typeFactory = mapper.getTypeFactory();
+		ObjectReader[] readers = new ObjectReader[f.parameterTypes.length];
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = mapper.readerFor(typeFactory.constructType(f.parameterTypes[i])).with(DeserializationFeature.FAIL_ON_NULL_FOR_PRIMITIVES);
+		}
+		e.readers = readers;
+		JavaType returnType = typeFactory.constructType(f.returnType);
+		if (returnType.isTypeOrSubTypeOf(CompletionStage.class)) {
+			// the response is written when the stage completes, with the value it completes with.
+			e.stage = true;
+			JavaType[] l = returnType.findTypeParameters(CompletionStage.class);
+			returnType = l.length == 1 ? l[0] : typeFactory.constructType(Object.class);
+		} else if (returnType.isTypeOrSubTypeOf(SherpaPublisher.class)) {
+			// values are sent to subscribers as server-sent events, see publish.
+			e.publish = true;
+			JavaType[] l = returnType.findTypeParameters(SherpaPublisher.class);
+			returnType = l.length == 1 ? l[0] : typeFactory.constructType(Object.class);
+		} else {
+			for (Class<?> sc : new Class<?>[]{Iterator.class, Stream.class, SherpaProducer.class}) {
+				if (returnType.isTypeOrSubTypeOf(sc)) {
+					// elements are written to the response as they are produced.
+					e.stream = true;
+					JavaType[] l = returnType.findTypeParameters(sc);
+					returnType = l.length == 1 ? l[0] : typeFactory.constructType(Object.class);
+					break;
+				}
+			}
+		}
+		e.writer = makeResultWriter(returnType);
+
+		if (f.maxConcurrent > 0) {
+			e.limit = new Bulkhead(f.maxConcurrent, f.maxQueued, f.queueTimeout, f.adaptiveConcurrency);
+		}
+		if (f.rateLimit > 0) {
+			int burst = f.rateBurst > 0 ? f.rateBurst : (int)Math.ceil(f.rateLimit);
+			e.rateLimit = new RateLimiter(f.rateLimit, burst, options.rateLimitMaxClients);
+			this.rateLimited = true;
+		}
+		if (e.stream || e.publish) {
+			// streaming results are written while the function runs, there is no point at which a timeout can still respond. subscriptions last until either side ends them.
+			e.timeout = 0;
+		} else {
+			e.timeout = f.timeout > 0 ? f.timeout : options.timeout;
+		}
+
+		e.compressThreshold = f.compressThreshold >= 0 ? f.compressThreshold : options.compressThreshold;
+		e.maxRequestBytes = f.maxRequestBytes >= 0 ? f.maxRequestBytes : options.maxRequestBytes;
+		if (f.cacheTtl > 0) {
+			if (e.stream || e.publish) {
+				throw new Exception(String.format("Function %s returns a streaming result or publisher, it cannot be cached.", name));
+			}
+			e.cache = new ResultCache(TimeUnit.MILLISECONDS.toNanos(f.cacheTtl), f.cacheMaxEntries);
+		}
+		if (f.httpMaxAge > 0) {
+			if (e.stream || e.publish) {
+				throw new Exception(String.format("Function %s returns a streaming result or publisher, it cannot be cached.", name));
+			}
+			e.httpCaching = new HttpCaching(f.httpMaxAge, (f.httpPublic ? "public" : "private") + ", max-age=" + f.httpMaxAge, versionInvoker);
+		}
+
+		e.logParameters = f.logParameters;
+		e.logResult = f.logResult;
+	}
+
+	// cacheable returns the functions that sherpa.js may deduplicate and retry, because they are declared to be without side effects, by having a cache.
+	// functions with httpMaxAge have the number of seconds clients may cache their results, sherpa.js can keep them in memory for that long. functions with only a result cache on the server have zero.
+	private static Map<String, Integer> cacheable(Map<String, Endpoint> endpoints, List<String> names) {
+		Map<String, Integer> cacheable = new LinkedHashMap<>();
+		for (String name : names) {
+			Endpoint e = endpoints.get("/" + name);
+			if (e.httpCaching != null) {
+				cacheable.put(name, e.httpCaching.maxAge);
+			} else if (e.cache != null) {
+				cacheable.put(name, 0);
+			}
+		}
+		return cacheable;
+	}
+
+	// reserve adds a reserved path to the dispatch table, unless a function has its name. limits are the defaults from the options.
+	private void reserve(Map<String, Endpoint> endpoints, Endpoint.Kind kind, String name) {
+		Endpoint e = new Endpoint(kind, name);
+		e.timeout = options.timeout;
+		e.compressThreshold = options.compressThreshold;
+		e.maxRequestBytes = options.maxRequestBytes;
+		if (endpoints.putIfAbsent("/" + name, e) != null) {
+			logger.log(Level.WARNING, String.format("function %s hides the reserved path of the same name", name));
+		}
+	}
+
+	// newExecutor returns an executor with a virtual thread per task on JDKs that have them, and a bounded thread pool otherwise.
+	private static ExecutorService newExecutor(int threads) {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			// no virtual threads, before java 21.
+		}
+		AtomicInteger count = new AtomicInteger();
+		return new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), (Runnable r) -> {
+			Thread t = new Thread(r, "sherpa-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@Override
+	public void destroy() {
+		if (ownExecutor != null) {
+			ownExecutor.shutdown();
+		}
+		if (heartbeats != null) {
+			heartbeats.shutdown();
+		}
+		super.destroy();
+	}
+
+	// recentCalls returns the last calls, most recent first, see SherpaOptions.recentCalls.
+	public List<SherpaCallRecord> recentCalls() {
+		return callLog.recent();
+	}
+
+	// slowCalls returns the last calls that took at least SherpaOptions.slowCallThreshold milliseconds, most recent first.
+	// they have their parameters, unless the function was annotated with logParameters=false.
+	public List<SherpaCallRecord> slowCalls() {
+		return callLog.slow();
+	}
+
+	// invalidateCache removes all cached responses of function "name", e.g. after data it returns has changed.
+	// the function must have a cache, through @SherpaFunction(cacheTtl=...).
+	public void invalidateCache(String name) {
+		Endpoint e = this.endpoints.get("/" + name);
+		if (e == null || e.cache == null) {
+			throw new IllegalArgumentException(String.format("function %s has no result cache", name));
+		}
+		e.cache.clear();
+	}
+
+	// limitConcurrency sets the concurrency limit of function "name", replacing the limit from @SherpaFunction, if any. Zero for maxConcurrent removes the limit.
+	// calls that are already running count against the previous limit.
+	public void limitConcurrency(String name, int maxConcurrent, int maxQueued, long queueTimeout, boolean adaptive) {
+		Endpoint e = this.endpoints.get("/" + name);
+		if (e == null || e.kind != Endpoint.Kind.FUNCTION) {
+			throw new IllegalArgumentException(String.format("no function %s", name));
+		}
+		e.limit = maxConcurrent > 0 ? new Bulkhead(maxConcurrent, maxQueued, queueTimeout, adaptive) : null;
+	}
+
+	// cacheable returns the http caching settings for a call of function "e", if it is a GET call and the function has them, otherwise null.
+	private HttpCaching cacheable(HttpServletRequest request, Endpoint e) {
+		if (request == null || !request.getMethod().equals("GET")) {
+			return null;
+		}
+		return e.httpCaching;
+	}
+
+	// versionTag calls the version function of "name", returning the weak ETag for the version, or null if there is no version.
+	private String versionTag(String name, SherpaInvoker version, Object[] params) throws IOException {
+		Object v;
+		try {
+			v = version.invoke(params);
+		} catch (InvocationTargetException | IllegalAccessException e) {
+			logger.log(Level.WARNING, String.format("calling version function for %s", name), e);
+			return null;
+		}
+		if (v == null) {
+			return null;
+		}
+		return "W/\"v" + RenderedPage.hash(v.toString().getBytes("UTF-8")) + "\"";
+	}
+
+	// async returns whether the call should be handled with an AsyncCall: in async mode, or for functions returning a CompletionStage.
+	private boolean async(HttpServletRequest request, Endpoint e) {
+		return request.isAsyncSupported() && (options.async || e.stage);
+	}
+
+	// asyncExecutor returns the executor to call function "name" on, for an AsyncCall.
+	// functions that return a CompletionStage are called directly if we're not in async mode, they are not expected to block.
+	private Executor asyncExecutor() {
+		return options.async ? this.executor : (Runnable r) -> r.run();
+	}
+
+	// client returns the key identifying the caller for rate limits, or null if no function has a rate limit, so other calls don't pay for it.
+	String client(HttpServletRequest request) {
+		if (!this.rateLimited) {
+			return null;
+		}
+		return this.clientKey.key(request);
+	}
+
+	// tooLarge responds with an error and returns true if a request of size bytes is too large for function "e".
+	boolean tooLarge(HttpServletResponse response, String callback, WireFormat format, Endpoint e, long size) throws IOException {
+		int max = e.maxRequestBytes;
+		if (max <= 0 || size <= max) {
+			return false;
+		}
+		collector.sherpaProtocolError();
+		respondErrorOK(response, callback, format, SHERPA_BAD_REQUEST, LimitException.tooLarge(max).getMessage());
+		return true;
+	}
+
+	// parser returns a parser for a request, enforcing the limits on nesting and array length.
+	JsonParser parser(WireFormat format, InputStream in) throws IOException {
+		return limited(format.factory.createParser(in));
+	}
+
+	private JsonParser limited(JsonParser p) {
+		if (options.maxJsonDepth <= 0 && options.maxArrayLength <= 0) {
+			return p;
+		}
+		return new LimitedJsonParser(p, options.maxJsonDepth, options.maxArrayLength);
+	}
+
+	// acceptsEvents returns whether the request asks for server-sent events, as EventSource does.
+	private static boolean acceptsEvents(HttpServletRequest request) {
+		String accept = request.getHeader("Accept");
+		return accept != null && accept.toLowerCase().contains("text/event-stream");
+	}
+
+	// acceptedEncoding returns the compression to use for the response, or null.
+	private String acceptedEncoding(HttpServletRequest request) {
+		if (!options.compression) {
+			return null;
+		}
+		return CompressedResponse.negotiate(request.getHeader("Accept-Encoding"));
+	}
+
+	// compressing returns a response that compresses its body once it reaches the threshold for function "e", if the client accepts compression.
+	// after writing, finish must be called on the returned response, and end in any case.
+	HttpServletResponse compressing(HttpServletRequest request, HttpServletResponse response, Endpoint e) {
+		if (options.compression) {
+			response.setHeader("Vary", "Accept-Encoding");
+		}
+		String encoding = acceptedEncoding(request);
+		if (encoding == null) {
+			return response;
+		}
+		return new CompressedResponse(response, encoding, e.compressThreshold);
+	}
+
+	static void finish(HttpServletResponse response) throws IOException {
+		if (response instanceof CompressedResponse) {
+			((CompressedResponse)response).finish();
+		}
+	}
+
+	// end frees the compressor of a response from compressing, also when it wasn't finished. it must always be called.
+	static void end(HttpServletResponse response) {
+		if (response instanceof CompressedResponse) {
+			((CompressedResponse)response).end();
+		}
+	}
+
+	// compress returns the compressed form of a response body for function "e", setting the headers, if the client accepts compression and the body reaches the threshold.
+	byte[] compress(HttpServletRequest request, HttpServletResponse response, Endpoint e, byte[] data) throws IOException {
+		if (options.compression) {
+			response.setHeader("Vary", "Accept-Encoding");
+		}
+		String encoding = acceptedEncoding(request);
+		if (encoding == null || data.length < e.compressThreshold) {
+			return data;
+		}
+		data = CompressedResponse.compress(data, encoding);
+		response.setHeader("Content-Encoding", encoding);
+		response.setContentLength(data.length);
+		return data;
+	}
+
+	// page returns the rendered page for path "name" for the base url of the request.
+	// pages only depend on the base url, so they are kept, for a limited number of base urls.
+	private RenderedPage page(HttpServletRequest request, String name) throws IOException {
+		String baseUrl = getBaseUrl(request, this.sherpaJson.baseurl);
+		String key = name + " " + baseUrl;
+		RenderedPage page = pages.get(key);
+		if (page != null) {
+			return page;
+		}
+		String sherpaJson = sherpaJsonWriter.writeValueAsString(new SherpaJSON(this.sherpaJson.id, this.sherpaJson.title, this.sherpaJson.functions, baseUrl, this.sherpaJson.version, this.sherpaJson.cacheable));
+		String content;
+		if (name.equals("sherpa.js")) {
+			content = this.rawJavascript.replace("SHERPA_JSON", sherpaJson);
+		} else if (name.equals("sherpa.json")) {
+			content = sherpaJson;
+		} else {
+			content = this.rawHtml.replace("{{.docsURL}}", "https://sherpa.irias.nl/#" + baseUrl);
+		}
+		page = new RenderedPage(content.getBytes("UTF-8"));
+		// the host is from the request, don't let clients grow this without bounds.
+		if (pages.size() < 64) {
+			pages.put(key, page);
+		}
+		return page;
+	}
+
+	// writePage writes a rendered page, compressed if the client accepts it, or responds with 304 if the client has it.
+	private void writePage(HttpServletRequest request, HttpServletResponse response, RenderedPage page, String contentType) throws IOException {
+		String encoding = null;
+		if (options.compression) {
+			response.setHeader("Vary", "Accept-Encoding");
+			if (page.data.length >= options.compressThreshold) {
+				encoding = acceptedEncoding(request);
+			}
+		}
+		response.setHeader("ETag", page.etag(encoding));
+		response.setHeader("cache-control", "no-cache, max-age=0");
+		response.setHeader("last-modified", lastModified);
+
+		// If-Modified-Since is only used by clients that don't send If-None-Match.
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null ? page.matches(ifNoneMatch, encoding) : attempt304(request, response)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		byte[] data = page.body(encoding);
+		response.setContentType(contentType);
+		if (encoding != null) {
+			response.setHeader("Content-Encoding", encoding);
+		}
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentLength(data.length);
+		response.getOutputStream().write(data);
+	}
+
+	// makeResultWriter returns a writer with serializers resolved up front for the declared return type.
+	// only when the declared type is final or a container, otherwise a subclass instance would be serialized as the declared type.
+	private ObjectWriter makeResultWriter(JavaType t) {
+		if (t.isJavaLangObject() || t.hasRawClass(Void.TYPE) || !(t.isFinal() || t.isContainerType())) {
+			return mapper.writer();
+		}
+		return mapper.writerFor(t);
 	}
 
 	private String getBaseUrl(HttpServletRequest request, String path) {
@@ -177,75 +673,102 @@ public class SherpaServlet extends HttpServlet {
 		return scheme + "://" + host + path;
 	}
 
-	private String makeSherpaJson(SherpaJSON s, HttpServletRequest request) throws IOException {
-		return new ObjectMapper().writeValueAsString(new SherpaJSON(s.id, s.title, s.functions, getBaseUrl(request, s.baseurl), s.version));
-	}
-
 	@Override
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-		String name = request.getPathInfo();
-		if (name == null) {
+		String path = request.getPathInfo();
+		if (path == null) {
 			fileNotFound(response);
 			return;
 		}
-		name = name.substring(1);
 
-		if (name.equals("")) {
-			if(attempt304(request, response)) {
+		Endpoint e = this.endpoints.get(path);
+		if (e != null) {
+			switch (e.kind) {
+			case HTML:
+				writePage(request, response, page(request, e.name), "text/html; charset=utf-8");
 				return;
-			}
-			response.setContentType("text/html; charset=utf-8");
-			response.setHeader("cache-control", "no-cache, max-age=0");
-			response.setHeader("last-modified", lastModified);
-			response.setStatus(HttpServletResponse.SC_OK);
-			response.getOutputStream().write(this.rawHtml.replace("{{.docsURL}}", "https://sherpa.irias.nl/#" + getBaseUrl(request, this.sherpaJson.baseurl)).getBytes("UTF-8"));
-			return;
-		}
-
-		if (name.equals("sherpa.js")) {
-			collector.sherpaJavascript();
-			if(attempt304(request, response)) {
+			case JAVASCRIPT:
+				collector.sherpaJavascript();
+				writePage(request, response, page(request, e.name), "text/javascript; charset=utf-8");
 				return;
-			}
-			response.setContentType("text/javascript; charset=utf-8");
-			response.setHeader("cache-control", "no-cache, max-age=0");
-			response.setHeader("last-modified", lastModified);
-			response.setStatus(HttpServletResponse.SC_OK);
-			response.getOutputStream().write(this.rawJavascript.replace("SHERPA_JSON", makeSherpaJson(this.sherpaJson, request)).getBytes("UTF-8"));
-			return;
-
-		}
-
-		if (name.equals("sherpa.json")) {
-			collector.sherpaJSON();
-			CORS(response);
-			if(attempt304(request, response)) {
+			case JSON:
+				collector.sherpaJSON();
+				CORS(response);
+				writePage(request, response, page(request, e.name), "application/json; charset=utf-8");
 				return;
+			case METRICS:
+				response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+				response.setHeader("Cache-Control", "no-store");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getOutputStream().write(metrics.format().getBytes("UTF-8"));
+				return;
+			case DEBUG:
+				Map<String, Object> calls = new LinkedHashMap<>();
+				calls.put("slowCallThreshold", callLog.slowNanos > 0 ? options.slowCallThreshold : 0);
+				calls.put("slow", callLog.slow());
+				calls.put("recent", callLog.recent());
+				response.setContentType("application/json; charset=utf-8");
+				response.setHeader("Cache-Control", "no-store");
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getOutputStream().write(logWriter.writeValueAsBytes(calls));
+				return;
+			default:
+				break;
 			}
-			response.setContentType("application/json; charset=utf-8");
-			response.setHeader("cache-control", "no-cache, max-age=0");
-			response.setHeader("last-modified", lastModified);
-			response.setStatus(HttpServletResponse.SC_OK);
-			response.getOutputStream().write(makeSherpaJson(this.sherpaJson, request).getBytes("UTF-8"));
-			return;
 		}
 
 		String callback = request.getParameter("callback");
 		if (callback != null && !validCallback(callback)) {
 			collector.sherpaProtocolError();
-			respondError(response, callback, SHERPA_BAD_REQUEST, "invalid callback string", HttpServletResponse.SC_BAD_REQUEST);
+			respondError(response, callback, json, SHERPA_BAD_REQUEST, "invalid callback string", HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		if (e == null) {
+			badFunction(response, callback, json);
 			return;
 		}
 		String body = request.getParameter("body");
 		if (body == null) {
 			body = "{\"params\": []}";
 		}
+		byte[] data = body.getBytes("UTF-8");
+		if (tooLarge(response, callback, json, e, data.length)) {
+			return;
+		}
+
+		if (e.publish) {
+			// subscribing doesn't block, so it is done on the container thread, also in async mode. events are written with non-blocking IO.
+			if (!request.isAsyncSupported()) {
+				respondError(response, callback, json, SHERPA_SERVER_ERROR, "servlet has no async support, needed for subscriptions", HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				return;
+			}
+			try {
+				call(request, client(request), response, callback, json, json, e, new ByteArrayInputStream(data));
+			} catch (Exception ex) {
+				collector.sherpaProtocolError();
+				throw new ServletException(String.format("subscribing to function %s: %s", e.name, ex.getMessage()));
+			}
+			return;
+		}
 
+		if (async(request, e)) {
+			new AsyncCall(this, request.startAsync(), response, asyncExecutor(), callback, json, json, e, null, data).start(e.timeout);
+			return;
+		}
+
+		HttpServletResponse r = compressing(request, response, e);
 		try {
-			call(response, callback, name, new ByteArrayInputStream(body.getBytes("UTF-8")));
-		} catch (Exception e) {
+			CompletableFuture<Void> pending = call(request, client(request), r, callback, json, json, e, new ByteArrayInputStream(data));
+			if (pending != null) {
+				// no async support, we have to wait.
+				pending.get();
+			}
+			finish(r);
+		} catch (Exception ex) {
 			collector.sherpaProtocolError();
-			throw new ServletException(String.format("calling function %s: %s", name, e.getMessage()));
+			throw new ServletException(String.format("calling function %s: %s", e.name, ex.getMessage()));
+		} finally {
+			end(r);
 		}
 	}
 
@@ -265,160 +788,639 @@ public class SherpaServlet extends HttpServlet {
 		return false;
 	}
 
-	private void call(HttpServletResponse response, String callback, String name, InputStream body) throws Exception {
-		Method m = this.functions.get(name);
-		if (m == null) {
-			if (name.equals("_docs") && documentation != null) {
-				// xxx there is no parameter checking here...
-				respondOK(response, callback, new SherpaResponse(documentation, null));
-				collector.sherpaFunctionCalled("_docs", false, false, 0);
-				return;
-			}
+	// call handles a call of function "name". it returns null if the response has been written.
+	// for functions that return a CompletionStage, it returns a future that completes when the response has been written.
+	// request is null for calls in a batch. client is the key for rate limits, see client(). e is null for a function that does not exist.
+	// the request is parsed in format "in", the response written in format "out", see responseFormat.
+	CompletableFuture<Void> call(HttpServletRequest request, String client, HttpServletResponse response, String callback, WireFormat in, WireFormat out, Endpoint e, InputStream body) throws Exception {
+		return call(request, client, response, callback, in, out, e, body, null);
+	}
 
-			respondError(response, callback, SHERPA_BAD_FUNCTION, "function does not exit", HttpServletResponse.SC_NOT_FOUND);
-			collector.sherpaBadFunction();
-			return;
+	// callParsed handles a call in a batch, with the request object, {"params": [...]}, already parsed by BatchCall.
+	// the parameters are bound from the tree, exactly like from a request body. the batch request as a whole is limited by the size limit of _batch.
+	CompletableFuture<Void> callParsed(String client, HttpServletResponse response, Endpoint e, JsonNode tree) throws Exception {
+		return call(null, client, response, null, json, json, e, null, tree);
+	}
+
+	// exactly one of body and tree is set.
+	private CompletableFuture<Void> call(HttpServletRequest request, String client, HttpServletResponse response, String callback, WireFormat in, WireFormat out, Endpoint e, InputStream body, JsonNode tree) throws Exception {
+		if (e == null || !e.callable()) {
+			badFunction(response, callback, out);
+			return null;
+		}
+		if (e.kind == Endpoint.Kind.DOCS) {
+			// xxx there is no parameter checking here...
+			respondOK(response, callback, out, new SherpaResponse(documentation, null));
+			metrics.called(e.metrics, false, false, 0);
+			return null;
+		}
+		if (e.kind == Endpoint.Kind.BATCH) {
+			new BatchCall(this, response, callback, client, options.batchConcurrency, executor).run(in, new CountingInputStream(body, e.maxRequestBytes));
+			return null;
+		}
+		String name = e.name;
+
+		long start = now();
+
+		// events can only be sent in a response of their own, to a GET request, see doGet.
+		if (e.publish && (request == null || !request.getMethod().equals("GET") || callback != null || !acceptsEvents(request))) {
+			collector.sherpaProtocolError();
+			long n = respondErrorOK(response, callback, out, SHERPA_BAD_REQUEST, String.format("function %s publishes events, subscribe with a GET request with Accept: text/event-stream", name));
+			timed(e, SHERPA_BAD_REQUEST, false, start, start, start, 0, n, null);
+			return null;
+		}
+
+		// rate limited calls are rejected before we read the request.
+		if (e.rateLimit != null && client != null) {
+			long wait = e.rateLimit.acquire(client, start);
+			if (wait > 0) {
+				metrics.rateLimited(e.metrics);
+				metrics.called(e.metrics, true, false, 0);
+				response.setHeader("Retry-After", Long.toString((wait + 999999999L) / 1000000000L));
+				long n = respondError(response, callback, out, SHERPA_RATE_LIMITED, String.format("too many calls to function %s, try again later", name), SC_TOO_MANY_REQUESTS);
+				timed(e, SHERPA_RATE_LIMITED, false, start, start, start, 0, n, null);
+				return null;
+			}
 		}
 
-		double t0 = now();
+		CountingInputStream counted = new CountingInputStream(body, e.maxRequestBytes);
+		InputStream paramsIn = counted;
 
-		// xxx would be better to read the params array elements as raw json bytes, parse them once later.  is this possible with jackson?
-		ObjectMapper mapper = new ObjectMapper();
-		mapper.configure(DeserializationFeature.FAIL_ON_NULL_FOR_PRIMITIVES, true);
+		HttpCaching hc = cacheable(request, e);
 
-		SherpaRequest req;
+		// for cached functions, we look up the request, and skip the rest of the call if we have the response.
+		ResultCache cache = e.cache;
+		ResultCache.Miss miss = null;
+		if (cache != null) {
+			String key;
+			if (tree != null) {
+				key = mapper.writeValueAsString(tree);
+			} else {
+				byte[] data;
+				try {
+					data = readBytes(counted);
+				} catch (LimitException ex) {
+					badRequest(response, callback, out, e, new BadRequestException(true, ex.getMessage()), start, counted.count);
+					return null;
+				}
+				key = cacheKey(in, data);
+				paramsIn = new ByteArrayInputStream(data);
+			}
+			if (key != null) {
+				// responses for GET calls are stored with their ETag, and binary responses are different bytes, so they are kept apart.
+				if (hc != null) {
+					key = "GET " + key;
+				} else if (out != json) {
+					key = out.mediaType + " " + key;
+				}
+				key = ResultCache.key(e.name, key);
+				ResultCache.Cached cached = cache.get(key, start);
+				if (cached != null) {
+					metrics.cacheHit(e.metrics);
+					long found = now();
+					metrics.called(e.metrics, false, false, 0);
+					long n = hc != null ? respondCacheable(request, response, callback, hc, cached.data, cached.etag) : respondBytes(response, callback, out, cached.data);
+					timed(e, null, false, start, found, found, counted.count, n, null);
+					return null;
+				}
+				metrics.cacheMiss(e.metrics);
+				miss = cache.miss(key);
+			}
+		}
+
+		Object[] params;
 		try {
-			req = mapper.readValue(body, SherpaRequest.class);
-		} catch (JsonMappingException e) {
-			respondErrorOK(response, callback, SHERPA_BAD_REQUEST, "could not parse request parameters: "+e.getMessage());
-			collector.sherpaFunctionCalled(name, true, false, now()-t0);
-			return;
+			params = tree != null ? readParams(mapper.treeAsTokens(tree), e.readers) : readParams(in, paramsIn, e.readers);
+		} catch (BadRequestException ex) {
+			badRequest(response, callback, out, e, ex, start, counted.count);
+			return null;
+		}
+		long decoded = now();
+
+		// with a version function, a client that has the current version gets a 304 without calling the function.
+		String etag = null;
+		if (hc != null && hc.version != null) {
+			etag = versionTag(name, hc.version, params);
+			String ifNoneMatch = request.getHeader("If-None-Match");
+			if (etag != null && ifNoneMatch != null && RenderedPage.etagMatches(ifNoneMatch, etag)) {
+				metrics.called(e.metrics, false, false, 0);
+				respondCacheable(request, response, callback, hc, null, etag);
+				timed(e, null, false, start, decoded, decoded, counted.count, 0, params);
+				return null;
+			}
 		}
 
-		Class<?>[] paramTypes = m.getParameterTypes();
-		if (req.params.length != paramTypes.length) {
-			collector.sherpaProtocolError();
-			respondErrorOK(response, callback, SHERPA_BAD_REQUEST, String.format("wrong number of parameters: expected %d, got %d", paramTypes.length, req.params.length));
-			collector.sherpaFunctionCalled(name, true, false, now()-t0);
-			return;
+		boolean sensitive = !e.logParameters;
+		Outcome o = invoke(e, params, sensitive);
+		if (o.error == null && o.result != null && e.stream) {
+			stream(response, callback, e, o, params, sensitive, start, decoded, counted.count);
+			return null;
+		}
+		// a function that fails instead of returning a publisher gets its error as event, like a publisher that fails.
+		// calls rejected by the concurrency limits get an error response with their http status, which makes the browser give up.
+		if (e.publish && (o.error == null ? o.result != null : o.status != SC_TOO_MANY_REQUESTS && o.status != HttpServletResponse.SC_SERVICE_UNAVAILABLE)) {
+			publish(request, response, e, o, params, sensitive, start, decoded, counted.count);
+			return null;
 		}
-		Object[] params = new Object[paramTypes.length];
-		for (int i = 0; i < params.length; i++) {
+		if (!(o.result instanceof CompletionStage)) {
+			finish(request, response, callback, out, e, params, o, start, decoded, now(), counted.count, hc, miss, etag);
+			return null;
+		}
+		ResultCache.Miss stageMiss = miss;
+		String stageEtag = etag;
+
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		((CompletionStage<?>)o.result).whenComplete((Object result, Throwable t) -> {
+			long invoked = now();
 			try {
-				params[i] = mapper.readValue(mapper.writeValueAsString(req.params[i]), paramTypes[i]);
-			} catch (JsonMappingException e) {
-				respondErrorOK(response, callback, SHERPA_BAD_REQUEST, String.format("could not parse parameter %d: %s", i, e.getMessage()));
-				collector.sherpaFunctionCalled(name, true, false, now()-t0);
-				return;
+				Outcome oo;
+				if (t != null) {
+					if (t instanceof CompletionException && t.getCause() != null) {
+						t = t.getCause();
+					}
+					oo = failed(name, t, params, sensitive);
+				} else {
+					oo = new Outcome(result);
+				}
+				finish(request, response, callback, out, e, params, oo, start, decoded, invoked, counted.count, hc, stageMiss, stageEtag);
+				done.complete(null);
+			} catch (Throwable ex) {
+				done.completeExceptionally(ex);
 			}
+		});
+		return done;
+	}
+
+	// HttpCaching holds the Cache-Control header for responses that clients may cache, and the function that gives the version of a result, if any.
+	static class HttpCaching {
+		final int maxAge; // in seconds
+		final String cacheControl;
+		final SherpaInvoker version;
+
+		HttpCaching(int maxAge, String cacheControl, SherpaInvoker version) {
+			this.maxAge = maxAge;
+			this.cacheControl = cacheControl;
+			this.version = version;
 		}
+	}
+
+	// Outcome of calling a function: a result, or an error with the http status to respond with.
+	static class Outcome {
+		final Object result;
+		final SherpaError error;
+		final int status;
+		final boolean serverError;
+		Runnable release; // for streaming results, releases the concurrency limits once the result has been written
+
+		Outcome(Object result) {
+			this(result, null, HttpServletResponse.SC_OK, false);
+		}
+
+		Outcome(Object result, SherpaError error, int status, boolean serverError) {
+			this.result = result;
+			this.error = error;
+			this.status = status;
+			this.serverError = serverError;
+		}
+	}
 
-		// reset time again, we are not interested in the time it takes to execute the function
-		t0 = now();
+	// invoke calls the function, applying its concurrency limit, and turns exceptions into sherpa errors.
+	// if the function returns a CompletionStage, the limit is held until the stage completes.
+	// for a streaming result, the limit is held until the result has been written, by stream(), and for a publisher until the subscription ends.
+	private Outcome invoke(Endpoint e, Object[] params, boolean sensitive) throws IOException {
+		String name = e.name;
+		Bulkhead global = this.globalLimit;
+		if (global != null && !global.acquire()) {
+			metrics.rejected(e.metrics);
+			return new Outcome(null, new SherpaError(SHERPA_OVERLOADED, "server too busy, too many concurrent calls"), HttpServletResponse.SC_SERVICE_UNAVAILABLE, false);
+		}
+		Bulkhead limit = e.limit;
+		if (limit != null && !limit.acquire()) {
+			if (global != null) {
+				global.cancel();
+			}
+			metrics.rejected(e.metrics);
+			return new Outcome(null, new SherpaError(SHERPA_OVERLOADED, String.format("too many concurrent calls to function %s", name)), SC_TOO_MANY_REQUESTS, false);
+		}
 
-		Object result;
-		boolean sensitive = !this.logParameterFunctions.contains(name);
+		long started = now();
+		Runnable releaser = () -> {
+			if (limit != null) {
+				limit.release(started);
+			}
+			if (global != null) {
+				global.release(started);
+			}
+		};
+		boolean release = limit != null || global != null;
 		try {
 			if (logger.isLoggable(Level.FINER)) {
 				if (sensitive) {
 					logger.log(Level.FINER, "calling function {0} (parameters hidden due to sensitivity)", new Object[]{name});
 				} else {
-					logger.log(Level.FINER, "calling function {0} with parameters {1}", new Object[]{name, trim(mapper.writeValueAsString(params), 4*1024)});
+					logger.log(Level.FINER, "calling function {0} with parameters {1}", new Object[]{name, trim(logWriter.writeValueAsString(params), 4*1024)});
 				}
 			}
-			result = m.invoke(null, params);
+			Object result = e.invoker.invoke(params);
+			if (release && result instanceof CompletionStage) {
+				((CompletionStage<?>)result).whenComplete((Object r, Throwable t) -> releaser.run());
+				release = false;
+			} else if (release && result != null && (e.stream || e.publish)) {
+				Outcome o = new Outcome(result);
+				o.release = releaser;
+				release = false;
+				return o;
+			}
+			return new Outcome(result);
+		} catch (InvocationTargetException ex) {
+			return failed(name, ex.getCause(), params, sensitive);
+		} catch (java.lang.IllegalAccessException ex) {
+			logger.log(Level.FINE, "exception (1) calling "+name, ex);
+			return new Outcome(null, new SherpaError(SHERPA_SERVER_ERROR, ex.getMessage()), HttpServletResponse.SC_OK, true);
+		} catch (java.lang.IllegalArgumentException ex) {
+			logger.log(Level.FINE, "exception (2) calling "+name, ex);
+			return new Outcome(null, new SherpaError(SHERPA_BAD_PARAMS, "bad parameters: " + ex.getMessage()), HttpServletResponse.SC_OK, false);
+		} finally {
+			if (release) {
+				releaser.run();
+			}
+		}
+	}
 
-		} catch (InvocationTargetException e) {
-			Throwable ee = e.getCause();
+	// failed logs the exception raised by function "name", and turns it into a sherpa error.
+	Outcome failed(String name, Throwable ee, Object[] params, boolean sensitive) throws IOException {
+		Throwable origException = ee;
+		if (!(ee instanceof SherpaException) && ee instanceof Exception) {
+			ee = this.exceptionTransformer.transform((Exception)ee);
+		}
 
-			Throwable origException = ee;
-			if (!(ee instanceof SherpaException) && ee instanceof Exception) {
-				ee = this.exceptionTransformer.transform((Exception)ee);
+		boolean serverError = false;
+		if (ee instanceof SherpaUserException) {
+			logger.log(Level.FINE, String.format("user exception from function \"%s\"", name));
+			logger.log(Level.FINEST, String.format("SherpaUserException exception from function \"%s\"", name), origException);
+		} else {
+			if (sensitive) {
+				logger.log(Level.SEVERE, String.format("exception from function \"%s\" (parameters hidden due to sensitivity)", name), origException);
+			} else {
+				logger.log(Level.SEVERE, String.format("exception from function \"%s\" with parameters %s", name, trim(logWriter.writeValueAsString(params), 4*1024)), origException);
 			}
+			serverError = true;
+		}
 
-			if (ee instanceof SherpaUserException) {
-				logger.log(Level.FINE, String.format("user exception from function \"%s\"", name));
-				logger.log(Level.FINEST, String.format("SherpaUserException exception from function \"%s\"", name), origException);
-				collector.sherpaFunctionCalled(name, true, false, now()-t0);
-			} else {
-				if (sensitive) {
-					logger.log(Level.SEVERE, String.format("exception from function \"%s\" (parameters hidden due to sensitivity)", name), origException);
+		if (ee instanceof SherpaInternalServerException) {
+			SherpaInternalServerException eee = (SherpaInternalServerException)ee;
+			return new Outcome(null, new SherpaError(eee.code, ee.getMessage()), HttpServletResponse.SC_INTERNAL_SERVER_ERROR, serverError);
+		} else if (ee instanceof SherpaException) {
+			SherpaException eee = (SherpaException)ee;
+			return new Outcome(null, new SherpaError(eee.code, ee.getMessage()), HttpServletResponse.SC_OK, serverError);
+		}
+		String msg;
+		try {
+			msg = throwableFormatter.format(ee);
+		} catch (Exception eee) {
+			logger.log(Level.SEVERE, "exception while formatting exception", eee);
+			msg = "error while formatting earlier error";
+		}
+		return new Outcome(null, new SherpaError(SHERPA_SERVER_ERROR, msg), HttpServletResponse.SC_OK, serverError);
+	}
+
+	// finish reports the call to the collector and writes the response.
+	// miss is set for cached functions that weren't in the cache, successful responses are then stored.
+	// hc is set for responses that clients may cache, see cacheable. it is passed in, because in async mode the request can already be recycled after a timeout.
+	// in async mode, a call that completes after its timeout isn't counted or written, see BufferedResponse.claim.
+	// etag is the ETag from the version function, if any, otherwise cacheable responses get an ETag from their content.
+	private void finish(HttpServletRequest request, HttpServletResponse response, String callback, WireFormat format, Endpoint e, Object[] params, Outcome o, long start, long decoded, long invoked, long requestBytes, HttpCaching hc, ResultCache.Miss miss, String etag) throws IOException {
+		String name = e.name;
+		if (response instanceof BufferedResponse && !((BufferedResponse)response).claim()) {
+			// the timeout was counted and responded to, the result is dropped.
+			logger.log(Level.FINE, "dropping result of function {0}, completed after its timeout", new Object[]{name});
+			return;
+		}
+		boolean error = o.error != null;
+		metrics.called(e.metrics, error, o.serverError, seconds(invoked-decoded));
+
+		long n;
+		if (error) {
+			n = respond(response, callback, format, new SherpaResponse(null, o.error), o.status);
+		} else {
+			if (logger.isLoggable(Level.FINER)) {
+				if (e.logResult) {
+					logger.log(Level.FINER, "invocation of {0} successful, result: {1}", new Object[]{name, trim(logWriter.writeValueAsString(o.result), 4*1024)});
 				} else {
-					logger.log(Level.SEVERE, String.format("exception from function \"%s\" with parameters %s", name, trim(mapper.writeValueAsString(params), 4*1024)), origException);
+					logger.log(Level.FINER, "invocation of {0} successful (result hidden due to sensitivity)", new Object[]{name});
 				}
-				collector.sherpaFunctionCalled(name, true, true, now()-t0);
 			}
+			if (miss != null || hc != null) {
+				byte[] data = encodeResult(format, o.result, e.writer);
+				if (hc != null && etag == null) {
+					etag = "W/\"" + RenderedPage.hash(data) + "\"";
+				}
+				if (miss != null) {
+					miss.store(data, etag, now());
+				}
+				n = hc != null ? respondCacheable(request, response, callback, hc, data, etag) : respondBytes(response, callback, format, data);
+			} else {
+				n = respondResult(response, callback, format, o.result, e.writer);
+			}
+		}
+		timed(e, error ? o.error.code : null, o.serverError, start, decoded, invoked, requestBytes, n, params);
+	}
 
-			if (ee instanceof SherpaInternalServerException) {
-				SherpaInternalServerException eee = (SherpaInternalServerException)ee;
-				respondError(response, callback, eee.code, ee.getMessage(), HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-				return;
-			} else if (ee instanceof SherpaException) {
-				SherpaException eee = (SherpaException)ee;
-				respondErrorOK(response, callback, eee.code, ee.getMessage());
-				return;
+	// stream writes a streaming result, serializing each element as it is produced, so the result is never in memory as a whole.
+	// only a single serialized element is buffered, so an element that fails to serialize leaves no partial output.
+	// the response is already committed when an element fails: the result then has the elements written so far, and the response also has the error.
+	// invocation time includes producing the elements, since it is interleaved with encoding.
+	private void stream(HttpServletResponse response, String callback, Endpoint endpoint, Outcome result, Object[] params, boolean sensitive, long start, long decoded, long requestBytes) throws IOException {
+		String name = endpoint.name;
+		Outcome o = null;
+		long invoked;
+		CountingOutputStream out = new CountingOutputStream(response.getOutputStream());
+		try {
+			okHeaders(response, callback, json);
+			if (callback != null) {
+				callbackStart(out, callback);
+			}
+			logger.log(Level.FINER, "invocation of {0} successful, streaming result", new Object[]{name});
+			out.write("{\"result\":".getBytes("UTF-8"));
+			ObjectWriter w = endpoint.writer;
+			// one generator for all elements, it separates them. each element is flushed to buf first,
+			// and only then written to the response, so an element that fails to serialize isn't sent halfway.
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			JsonGenerator g = w.getFactory().createGenerator(buf);
+			try {
+				g.writeStartArray();
+				produce(result.result, (Object e) -> {
+					try {
+						w.writeValue(g, e);
+						g.flush();
+						buf.writeTo(out);
+						buf.reset();
+					} catch (IOException ex) {
+						throw new StreamWriteException(ex);
+					}
+				});
+			} catch (StreamWriteException e) {
+				if (!(e.getCause() instanceof JsonMappingException)) {
+					// writing to the client failed, no point in continuing.
+					throw e.getCause();
+				}
+				o = failed(name, e.getCause(), params, sensitive);
+			} catch (Throwable e) {
+				o = failed(name, e, params, sensitive);
+			}
+			invoked = now();
+			if (o == null) {
+				g.writeEndArray();
+			}
+			// after a failed element, close writes the rest of it to buf, which is discarded.
+			g.close();
+			if (o == null) {
+				buf.writeTo(out);
 			} else {
-				String msg;
-				try {
-					msg = throwableFormatter.format(ee);
-				} catch (Exception eee) {
-					logger.log(Level.SEVERE, "exception while formatting exception", eee);
-					msg = "error while formatting earlier error";
+				out.write(']');
+			}
+			buf.reset();
+			out.write(",\"error\":".getBytes("UTF-8"));
+			logWriter.writeValue(buf, o == null ? null : o.error);
+			buf.writeTo(out);
+			out.write('}');
+			if (callback != null) {
+				callbackEnd(out);
+			}
+		} catch (IOException e) {
+			metrics.called(endpoint.metrics, true, false, seconds(now()-decoded));
+			throw e;
+		} finally {
+			if (result.release != null) {
+				result.release.run();
+			}
+		}
+		boolean error = o != null;
+		boolean serverError = error && o.serverError;
+		metrics.called(endpoint.metrics, error, serverError, seconds(invoked-decoded));
+		timed(endpoint, error ? o.error.code : null, serverError, start, decoded, invoked, requestBytes, out.count, params);
+	}
+
+	// publish subscribes to the SherpaPublisher returned by function "endpoint", sending the values it publishes as server-sent events, see EventStream.
+	// if the function failed, the events are just the error. the call is counted and timed once the publisher is subscribed, the concurrency limits are held until the subscription ends.
+	private void publish(HttpServletRequest request, HttpServletResponse response, Endpoint endpoint, Outcome result, Object[] params, boolean sensitive, long start, long decoded, long requestBytes) throws IOException {
+		CORS(response);
+		response.setHeader("Cache-Control", "no-store");
+		// proxies like nginx must not buffer, events have to reach the client when they are sent.
+		response.setHeader("X-Accel-Buffering", "no");
+		response.setContentType("text/event-stream; charset=utf-8");
+		response.setStatus(HttpServletResponse.SC_OK);
+		EventStream s = new EventStream(this, request.startAsync(), endpoint, result.release, params, sensitive, options.eventQueue);
+		metrics.subscribed(endpoint.metrics);
+		s.start(heartbeats, options.eventHeartbeat);
+
+		Outcome o = null;
+		if (result.error != null) {
+			o = result;
+			s.end(o.error);
+		} else {
+			logger.log(Level.FINER, "invocation of {0} successful, sending events", new Object[]{endpoint.name});
+			try {
+				((SherpaPublisher<?>)result.result).subscribe(s);
+			} catch (Throwable t) {
+				o = failed(endpoint.name, t, params, sensitive);
+				s.end(o.error);
+			}
+		}
+		long invoked = now();
+		boolean error = o != null;
+		boolean serverError = error && o.serverError;
+		metrics.called(endpoint.metrics, error, serverError, seconds(invoked-decoded));
+		timed(endpoint, error ? o.error.code : null, serverError, start, decoded, invoked, requestBytes, 0, params);
+	}
+
+	// produce passes the elements of a streaming result to sink. streams and iterators that need closing are closed.
+	private static void produce(Object result, Consumer<Object> sink) throws Exception {
+		if (result instanceof Stream) {
+			try (Stream<?> s = (Stream<?>)result) {
+				s.forEachOrdered(sink);
+			}
+		} else if (result instanceof Iterator) {
+			Iterator<?> it = (Iterator<?>)result;
+			try {
+				while (it.hasNext()) {
+					sink.accept(it.next());
+				}
+			} finally {
+				if (it instanceof AutoCloseable) {
+					((AutoCloseable)it).close();
 				}
-				respondErrorOK(response, callback, SHERPA_SERVER_ERROR, msg);
-				return;
 			}
-		} catch (java.lang.IllegalAccessException e) {
-			logger.log(Level.FINE, "exception (1) calling "+name, e);
-			respondErrorOK(response, callback, SHERPA_SERVER_ERROR, e.getMessage());
-			collector.sherpaFunctionCalled(name, true, true, now()-t0);
-			return;
-		} catch (java.lang.IllegalArgumentException e) {
-			logger.log(Level.FINE, "exception (2) calling "+name, e);
-			respondErrorOK(response, callback, SHERPA_BAD_PARAMS, "bad parameters: " + e.getMessage());
-			collector.sherpaFunctionCalled(name, true, false, now()-t0);
-			return;
+		} else {
+			((SherpaProducer<?>)result).produce(sink);
+		}
+	}
+
+	// StreamWriteException carries an IOException from serializing an element out of a sink.
+	@SuppressWarnings("serial")
+	private static class StreamWriteException extends RuntimeException {
+		StreamWriteException(IOException cause) {
+			super(cause);
 		}
 
-		collector.sherpaFunctionCalled(name, false, false, now()-t0);
+		@Override
+		public synchronized IOException getCause() {
+			return (IOException)super.getCause();
+		}
+	}
 
-		if (logger.isLoggable(Level.FINER)) {
-			if (this.logResultFunctions.contains(name)) {
-				logger.log(Level.FINER, "invocation of {0} successful, result: {1}", new Object[]{name, trim(mapper.writeValueAsString(result), 4*1024)});
-			} else {
-				logger.log(Level.FINER, "invocation of {0} successful (result hidden due to sensitivity)", new Object[]{name});
+	private void badRequest(HttpServletResponse response, String callback, WireFormat format, Endpoint e, BadRequestException ex, long start, long requestBytes) throws IOException {
+		if (ex.protocolError) {
+			collector.sherpaProtocolError();
+		}
+		long decoded = now();
+		metrics.called(e.metrics, true, false, seconds(decoded-start));
+		long n = respondErrorOK(response, callback, format, SHERPA_BAD_REQUEST, ex.getMessage());
+		timed(e, SHERPA_BAD_REQUEST, false, start, decoded, decoded, requestBytes, n, null);
+	}
+
+	// badFunction responds to a call of a function that does not exist, with the response serialized at construction.
+	void badFunction(HttpServletResponse response, String callback, WireFormat format) throws IOException {
+		collector.sherpaBadFunction();
+		CORS(response);
+		response.setHeader("Cache-Control", "no-store");
+		response.setContentType(callback == null ? format.contentType : "text/javascript; charset=utf-8");
+		response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+		writeBytes(response, callback, format.badFunction);
+	}
+
+	// timed passes the phase timings of a completed call to the collector, and records the call in the call log. start, decoded and invoked are from now().
+	// errorCode is null for successful calls, params null if the call failed before they were read.
+	private void timed(Endpoint e, String errorCode, boolean serverError, long start, long decoded, long invoked, long requestBytes, long responseBytes, Object[] params) {
+		long end = now();
+		SherpaCallStats stats = new SherpaCallStats(e.name, errorCode != null, serverError, decoded-start, invoked-decoded, end-invoked, end-start, requestBytes, responseBytes);
+		metrics.timed(e.metrics, stats);
+		callLog.record(stats, errorCode, params, e.logParameters);
+	}
+
+	// readParams parses the request object in a single pass, binding each element of "params" directly to the type of the corresponding function parameter.
+	Object[] readParams(WireFormat format, InputStream body, ObjectReader[] readers) throws IOException, BadRequestException {
+		return readParams(parser(format, body), readers);
+	}
+
+	// readParams binds the parameters from parser "parser", which is closed.
+	private Object[] readParams(JsonParser parser, ObjectReader[] readers) throws IOException, BadRequestException {
+		try (JsonParser p = parser) {
+			if (p.nextToken() != JsonToken.START_OBJECT) {
+				throw new BadRequestException(false, "could not parse request parameters: request must be an object");
 			}
+
+			Object[] params = null;
+			while (p.nextToken() == JsonToken.FIELD_NAME) {
+				String field = p.getCurrentName();
+				if (!field.equals("params")) {
+					throw new BadRequestException(false, String.format("could not parse request parameters: unrecognized field \"%s\"", field));
+				}
+				if (p.nextToken() != JsonToken.START_ARRAY) {
+					throw new BadRequestException(false, "could not parse request parameters: params must be an array");
+				}
+
+				params = new Object[readers.length];
+				int n = 0;
+				while (p.nextToken() != JsonToken.END_ARRAY) {
+					if (n < readers.length) {
+						try {
+							params[n] = readers[n].readValue(p);
+						} catch (JsonMappingException e) {
+							// some deserializers wrap exceptions, including ours for limits.
+							if (e.getCause() instanceof LimitException) {
+								throw (LimitException)e.getCause();
+							}
+							throw new BadRequestException(false, String.format("could not parse parameter %d: %s", n, e.getMessage()));
+						}
+					} else {
+						// too many parameters, keep counting for the error message.
+						p.skipChildren();
+					}
+					n++;
+				}
+				if (n != readers.length) {
+					throw new BadRequestException(true, String.format("wrong number of parameters: expected %d, got %d", readers.length, n));
+				}
+			}
+			if (params == null) {
+				throw new BadRequestException(false, "could not parse request parameters: missing params");
+			}
+			return params;
+		} catch (LimitException e) {
+			throw new BadRequestException(true, e.getMessage());
 		}
-		respondOK(response, callback, new SherpaResponse(result, null));
 	}
 
-	private static String trim(String s, int n) {
+	static String trim(String s, int n) {
 		if (s.length() > n) {
 			return s.substring(0, n) + "...";
 		}
 		return s;
 	}
 
+	// responseFormat returns the format for the response to a call: the first supported format in the Accept header, otherwise the format of the request.
+	// quality values in Accept are ignored. streaming results and batches are always written as json, the response is not in memory as a whole.
+	private WireFormat responseFormat(HttpServletRequest request, WireFormat in, Endpoint e) {
+		if (e != null && (e.stream || e.publish || e.kind == Endpoint.Kind.BATCH)) {
+			return json;
+		}
+		String accept = request.getHeader("Accept");
+		if (accept == null || this.formats.size() == 1) {
+			return in;
+		}
+		for (String t : accept.split(",")) {
+			int i = t.indexOf(';');
+			WireFormat f = this.formats.get((i < 0 ? t : t.substring(0, i)).trim().toLowerCase());
+			if (f != null) {
+				return f;
+			}
+		}
+		return in;
+	}
+
 	@Override
 	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		String callback = null;
 
-		String name = request.getPathInfo();
-		if (name == null) {
+		String path = request.getPathInfo();
+		if (path == null) {
 			fileNotFound(response);
 			return;
 		}
-		name = name.substring(1);
 
 		ContentType ct = parseContentType(request.getContentType());
-		if (!ct.type.equals("application/json") || (!ct.charset.equals("") && !ct.charset.equals("utf-8"))) {
-			respondErrorOK(response, callback, SHERPA_BAD_REQUEST, "content-type of request should be application/json");
+		WireFormat in = this.formats.get(ct.type);
+		if (in == null || (in == json && !ct.charset.equals("") && !ct.charset.equals("utf-8"))) {
+			respondErrorOK(response, callback, json, SHERPA_BAD_REQUEST, "content-type of request should be application/json");
+			return;
+		}
+		Endpoint e = this.endpoints.get(path);
+		WireFormat out = responseFormat(request, in, e);
+		if (e == null || !e.callable()) {
+			badFunction(response, callback, out);
 			return;
 		}
+		// reject early if we can, chunked requests are checked while reading.
+		if (tooLarge(response, callback, out, e, request.getContentLengthLong())) {
+			return;
+		}
+		if (async(request, e)) {
+			new AsyncCall(this, request.startAsync(), response, asyncExecutor(), callback, in, out, e, request.getInputStream(), null).start(e.timeout);
+			return;
+		}
+
+		HttpServletResponse r = compressing(request, response, e);
 		try {
-			call(response, callback, name, request.getInputStream());
-		} catch (Exception e) {
-			throw new ServletException(String.format("calling function %s: %s", name, e.getMessage()));
+			CompletableFuture<Void> pending = call(request, client(request), r, callback, in, out, e, request.getInputStream());
+			if (pending != null) {
+				pending.get();
+			}
+			finish(r);
+		} catch (Exception ex) {
+			throw new ServletException(String.format("calling function %s: %s", e.name, ex.getMessage()));
+		} finally {
+			end(r);
 		}
 	}
 
@@ -442,6 +1444,10 @@ public class SherpaServlet extends HttpServlet {
 	}
 
 	private String readAll(InputStream s) throws IOException {
+		return new String(readBytes(s), "UTF-8");
+	}
+
+	private static byte[] readBytes(InputStream s) throws IOException {
 		// xxx a function like this has to be in the standard library somewhere...
 
 		ByteArrayOutputStream o = new ByteArrayOutputStream();
@@ -455,49 +1461,171 @@ public class SherpaServlet extends HttpServlet {
 			}
 			o.write(buf, 0, n);
 		}
-		return o.toString("UTF-8");
+		return o.toByteArray();
+	}
+
+	// cacheKey returns the request as compact json, without whitespace and with normalized numbers, for looking up cached responses.
+	// requests in binary formats get the same key as the equivalent json request.
+	// returns null for an invalid request, which readParams will report.
+	private String cacheKey(WireFormat format, byte[] body) {
+		StringWriter w = new StringWriter(body.length);
+		try (JsonParser p = limited(format.factory.createParser(body)); JsonGenerator g = mapper.getFactory().createGenerator(w)) {
+			if (p.nextToken() == null) {
+				return null;
+			}
+			g.copyCurrentStructure(p);
+			if (p.nextToken() != null) {
+				return null;
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		return w.toString();
 	}
 
-	private void CORS(HttpServletResponse r) {
+	void CORS(HttpServletResponse r) {
 		r.setHeader("Access-Control-Allow-Origin", "*");
 		r.setHeader("Access-Control-Allow-Methods", "GET, POST");
 		r.setHeader("Access-Control-Allow-Headers", "Content-Type");
 	}
 
-	private void respondErrorOK(HttpServletResponse r, String callback, String code, String message) throws IOException, UnsupportedEncodingException {
-		respondError(r, callback, code, message, HttpServletResponse.SC_OK);
+	private long respondErrorOK(HttpServletResponse r, String callback, WireFormat format, String code, String message) throws IOException, UnsupportedEncodingException {
+		return respondError(r, callback, format, code, message, HttpServletResponse.SC_OK);
 	}
 
-	private void respondError(HttpServletResponse r, String callback, String code, String message, int status) throws IOException, UnsupportedEncodingException {
-		respond(r, callback, new SherpaResponse(null, new SherpaError(code, message)), status);
+	private long respondError(HttpServletResponse r, String callback, WireFormat format, String code, String message, int status) throws IOException, UnsupportedEncodingException {
+		return respond(r, callback, format, new SherpaResponse(null, new SherpaError(code, message)), status);
 	}
 
-	private void respondOK(HttpServletResponse response, String callback, SherpaResponse resp) throws IOException, UnsupportedEncodingException {
-		respond(response, callback, resp, HttpServletResponse.SC_OK);
+	private long respondOK(HttpServletResponse response, String callback, WireFormat format, SherpaResponse resp) throws IOException, UnsupportedEncodingException {
+		return respond(response, callback, format, resp, HttpServletResponse.SC_OK);
 	}
 
-	private void respond(HttpServletResponse response, String callback, SherpaResponse resp, int status) throws IOException, UnsupportedEncodingException {
-		CORS(response);
-		response.setHeader("Cache-Control", "no-store");
+	// respondResult writes a successful response, serializing the result with the pre-resolved writer for the function.
+	// returns the number of bytes written, as do the other respond functions.
+	long respondResult(HttpServletResponse response, String callback, WireFormat format, Object result, ObjectWriter resultWriter) throws IOException, UnsupportedEncodingException {
+		okHeaders(response, callback, format);
+		try (ResponseBuffer out = buffer(response)) {
+			if (callback != null) {
+				callbackStart(out, callback);
+			}
+			writeResult(out, format, result, resultWriter);
+			if (callback != null) {
+				callbackEnd(out);
+			}
+			return out.done();
+		}
+	}
+
+	// respondBytes writes a successful response that has already been serialized, e.g. by encodeResult.
+	long respondBytes(HttpServletResponse response, String callback, WireFormat format, byte[] data) throws IOException {
+		okHeaders(response, callback, format);
+		return writeBytes(response, callback, data);
+	}
 
-		OutputStream out = response.getOutputStream();
+	// respondCacheable writes a successful response that clients may cache, or a 304 response if the client already has it.
+	// the ETag is weak: the response may be compressed, and is equivalent either way. only GET calls are cacheable, they are always json.
+	private long respondCacheable(HttpServletRequest request, HttpServletResponse response, String callback, HttpCaching hc, byte[] data, String etag) throws IOException {
+		okHeaders(response, callback, json);
+		response.setHeader("Cache-Control", hc.cacheControl);
+		response.setHeader("ETag", etag);
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null && RenderedPage.etagMatches(ifNoneMatch, etag)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return 0;
+		}
+		return writeBytes(response, callback, data);
+	}
 
+	private long writeBytes(HttpServletResponse response, String callback, byte[] data) throws IOException {
 		if (callback == null) {
-			response.setContentType("application/json; charset=utf-8");
-			response.setStatus(status);
-			new ObjectMapper().writeValue(out, resp);
-			return;
+			response.setContentLength(data.length);
+			response.getOutputStream().write(data);
+			return data.length;
+		}
+		try (ResponseBuffer out = buffer(response)) {
+			callbackStart(out, callback);
+			out.write(data);
+			callbackEnd(out);
+			return out.done();
+		}
+	}
+
+	// buffer returns the stream to write a response body to, see ResponseBuffer. it must be closed.
+	ResponseBuffer buffer(HttpServletResponse response) throws IOException {
+		// responses of async calls are buffered until the call is done already.
+		int limit = response instanceof BufferedResponse ? 0 : options.responseBufferBytes;
+		return new ResponseBuffer(bufferPool, collector, response, limit);
+	}
+
+	private static final byte[] CALLBACK_OPEN = {'(', '\n', '\t'};
+	private static final byte[] CALLBACK_CLOSE = {')', ';'};
+
+	// callbackStart writes the start of a JSONP response. callbacks are ascii, see validCallback.
+	static void callbackStart(OutputStream out, String callback) throws IOException {
+		for (int i = 0; i < callback.length(); i++) {
+			out.write(callback.charAt(i));
+		}
+		out.write(CALLBACK_OPEN);
+	}
+
+	static void callbackEnd(OutputStream out) throws IOException {
+		out.write(CALLBACK_CLOSE);
+	}
+
+	byte[] encodeResult(WireFormat format, Object result, ObjectWriter resultWriter) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeResult(out, format, result, resultWriter);
+		return out.toByteArray();
+	}
+
+	// writeResult writes the sherpa response object for a result.
+	private void writeResult(OutputStream out, WireFormat format, Object result, ObjectWriter resultWriter) throws IOException {
+		try (JsonGenerator g = format.factory.createGenerator(out)) {
+			g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			g.writeStartObject();
+			g.writeFieldName("result");
+			resultWriter.writeValue(g, result);
+			g.writeNullField("error");
+			g.writeEndObject();
+		}
+	}
+
+	// okHeaders sets status and headers for a successful response.
+	void okHeaders(HttpServletResponse response, String callback, WireFormat format) {
+		CORS(response);
+		response.setHeader("Cache-Control", "no-store");
+		response.setContentType(callback == null ? format.contentType : "text/javascript; charset=utf-8");
+		response.setStatus(HttpServletResponse.SC_OK);
+	}
+
+	long respond(HttpServletResponse response, String callback, WireFormat format, SherpaResponse resp, int status) throws IOException, UnsupportedEncodingException {
+		CORS(response);
+		response.setHeader("Cache-Control", "no-store");
+		if ((status == HttpServletResponse.SC_SERVICE_UNAVAILABLE || status == SC_TOO_MANY_REQUESTS) && !response.containsHeader("Retry-After")) {
+			response.setHeader("Retry-After", Integer.toString(options.retryAfter));
 		}
 
-		response.setContentType("text/javascript; charset=utf-8");
-		response.setStatus(status);
+		try (ResponseBuffer out = buffer(response)) {
+			if (callback == null) {
+				response.setContentType(format.contentType);
+				response.setStatus(status);
+				if (format == json) {
+					responseWriter.writeValue(out, resp);
+				} else {
+					format.write(out, responseWriter, resp);
+				}
+				return out.done();
+			}
 
-		out.write((callback + "(\n\t").getBytes("UTF-8"));
+			response.setContentType("text/javascript; charset=utf-8");
+			response.setStatus(status);
 
-		ObjectMapper mapper = new ObjectMapper();
-		mapper.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
-		mapper.writeValue(out, resp);
-		out.write(");".getBytes("UTF-8"));
+			callbackStart(out, callback);
+			responseWriter.writeValue(out, resp);
+			callbackEnd(out);
+			return out.done();
+		}
 	}
 
 	// return whether callback js snippet is valid.
@@ -516,6 +1644,28 @@ public class SherpaServlet extends HttpServlet {
 		return true;
 	}
 
+	// LimitException is raised while reading a request that exceeds the limits on size, nesting or array length.
+	@SuppressWarnings("serial")
+	static class LimitException extends IOException {
+		LimitException(String message) {
+			super(message);
+		}
+
+		static LimitException tooLarge(long max) {
+			return new LimitException(String.format("request too large: maximum %d bytes", max));
+		}
+	}
+
+	@SuppressWarnings("serial")
+	static class BadRequestException extends Exception {
+		boolean protocolError;
+
+		public BadRequestException(boolean protocolError, String message) {
+			super(message);
+			this.protocolError = protocolError;
+		}
+	}
+
 	static class ContentType {
 		String type;
 		String charset;
@@ -534,7 +1684,12 @@ public class SherpaServlet extends HttpServlet {
 		return new ContentType(l[0], l[1]);
 	}
 
-	private double now() {
-		return System.currentTimeMillis()/1000;
+	// now returns a timestamp in nanoseconds, only useful for calculating durations.
+	private long now() {
+		return System.nanoTime();
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1e9;
 	}
 }
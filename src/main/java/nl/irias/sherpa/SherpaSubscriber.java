@@ -0,0 +1,22 @@
+package nl.irias.sherpa;
+
+// SherpaSubscriber is passed to SherpaPublisher.subscribe, and sends each value to the client as an event with a sherpa response.
+// Values are queued, and written when the connection can take them. At most SherpaOptions.eventQueue values are queued, when the client doesn't keep up, values are rejected.
+// Methods can be called from any thread.
+public interface SherpaSubscriber<T> {
+	// next queues a value to be sent as a result. It returns false if the value was rejected: the queue is full, or the subscription has ended.
+	// A value that cannot be serialized ends the subscription with an error.
+	boolean next(T value);
+
+	// error ends the subscription with the sherpa error for the exception, like an exception thrown by a function. Queued values are sent first.
+	void error(Throwable t);
+
+	// complete ends the subscription after the queued values have been sent.
+	void complete();
+
+	// closed returns whether the subscription has ended, by the publisher, or because the client went away or could not be written to.
+	boolean closed();
+
+	// onClose registers a function that is called once the subscription has ended, e.g. to stop producing values. It is called right away if the subscription has already ended.
+	void onClose(Runnable r);
+}
@@ -0,0 +1,47 @@
+package nl.irias.sherpa;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+// WireFormat is an encoding of requests and responses of function calls. JSON is always available.
+// The binary formats CBOR and Smile are available when their Jackson dataformat module is on the classpath, see load.
+// Parameters and results are bound by the same readers and writers in all formats, only the parser and generator differ.
+class WireFormat {
+	final String mediaType; // as in Content-Type and Accept, e.g. "application/cbor"
+	final String contentType; // for the header of responses
+	final JsonFactory factory;
+	byte[] badFunction; // response for calls of functions that don't exist, set by the servlet
+
+	static final String CBOR = "application/cbor";
+	static final String SMILE = "application/x-jackson-smile";
+
+	WireFormat(String mediaType, String contentType, JsonFactory factory) {
+		this.mediaType = mediaType;
+		this.contentType = contentType;
+		this.factory = factory;
+	}
+
+	// load returns the binary format with the factory from a Jackson dataformat module, or null if the module is not on the classpath.
+	// the modules are optional dependencies, so we don't refer to their classes directly.
+	static WireFormat load(String mediaType, String factoryClass) {
+		try {
+			JsonFactory f = (JsonFactory)Class.forName(factoryClass).getConstructor().newInstance();
+			f.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			return new WireFormat(mediaType, mediaType, f);
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	// write serializes value with writer, which can be for any format.
+	void write(OutputStream out, ObjectWriter writer, Object value) throws IOException {
+		try (JsonGenerator g = factory.createGenerator(out)) {
+			g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			writer.writeValue(g, value);
+		}
+	}
+}
@@ -65,6 +65,7 @@ function thenable(fn) {
 	return nfn;
 }
 
+// postJSON calls error with a sherpa error, the http status (zero if the connection failed), and the seconds from Retry-After, if any.
 function postJSON(url, param, success, error) {
 	var req = new window.XMLHttpRequest();
 	req.open('POST', url, true);
@@ -72,34 +73,293 @@ function postJSON(url, param, success, error) {
 		if(req.status >= 200 && req.status < 400) {
 			success(JSON.parse(req.responseText));
 		} else {
-			if(req.status === 404) {
-				error({code: 'sherpaBadFunction', message: 'function does not exist'});
+			// e.g. overload responses (429, 503) have a sherpa error in the body.
+			var resp = null;
+			try {
+				resp = JSON.parse(req.responseText);
+			} catch(e) {
+			}
+			var retryAfter = parseInt(req.getResponseHeader('Retry-After'), 10);
+			if(isNaN(retryAfter)) {
+				retryAfter = 0;
+			}
+			if(resp && resp.error && resp.error.code) {
+				error(resp.error, req.status, retryAfter);
+			} else if(req.status === 404) {
+				error({code: 'sherpaBadFunction', message: 'function does not exist'}, req.status, 0);
 			} else {
-				error({code: 'sherpaHttpError', message: 'error calling function, HTTP status: '+req.status});
+				error({code: 'sherpaHttpError', message: 'error calling function, HTTP status: '+req.status}, req.status, retryAfter);
 			}
 		}
 	};
 	req.onerror = function onerror() {
-		error({code: 'sherpaClientError', message: 'connection failed'});
+		error({code: 'sherpaClientError', message: 'connection failed'}, 0, 0);
 	};
 	req.setRequestHeader('Content-Type', 'application/json');
 	req.send(JSON.stringify(param));
 }
 
+// calls made in the same tick are sent in a single request to "_batch", with at most batchMax calls per request.
+// batchMax is set by the server, zero disables batching.
+var batchMax = SHERPA_BATCH;
+
+function settle(response, resolve, reject) {
+	if(response && response.error) {
+		reject(response.error);
+	} else if(response && response.hasOwnProperty('result')) {
+		resolve(response.result);
+	} else {
+		reject({code: 'sherpaBadResponse', message: "invalid sherpa response object, missing 'result'"});
+	}
+}
+
+function enqueue(api, call) {
+	if(!api._pending) {
+		api._pending = [];
+		window.setTimeout(function() {
+			flush(api);
+		}, 0);
+	}
+	api._pending.push(call);
+}
+
+function flush(api) {
+	var calls = api._pending;
+	api._pending = null;
+	while(calls.length > 0) {
+		send(api, calls.splice(0, batchMax));
+	}
+}
+
+// dispatch sends a call, in a batch with other calls made in the same tick if batching is enabled.
+function dispatch(api, call) {
+	if(batchMax > 1) {
+		enqueue(api, call);
+	} else {
+		send(api, [call]);
+	}
+}
+
+// fail retries a call that failed with a transient error, with a random delay that grows with each attempt, or rejects it.
+// calls rejected by the server because it was too busy or the client made too many calls were not run, they are always retried.
+// after a connection or gateway error the function may have run, so only calls of functions without side effects are retried.
+function fail(api, call, error, status, retryAfter) {
+	var opts = api._options;
+	var code = error && error.code;
+	var transient = code === 'sherpaOverloaded' || code === 'sherpaRateLimited' || (call.safe && (status === 0 || status === 502 || status === 503 || status === 504));
+	if(!transient || call.attempt >= opts.retries) {
+		call.reject(error);
+		return;
+	}
+	call.attempt++;
+	// a random delay up to the backoff, so clients that failed together don't all retry together.
+	var delay = Math.random() * opts.retryDelay * Math.pow(2, call.attempt-1) + (retryAfter || 0) * 1000;
+	window.setTimeout(function() {
+		dispatch(api, call);
+	}, delay);
+}
+
+function send(api, calls) {
+	if(calls.length === 1) {
+		var c = calls[0];
+		postJSON(api._sherpa.baseurl+c.name, {params: c.params}, function(response) {
+			settle(response, c.resolve, function(error) {
+				fail(api, c, error, 200, 0);
+			});
+		}, function(error, status, retryAfter) {
+			fail(api, c, error, status, retryAfter);
+		});
+		return;
+	}
+
+	var batch = [];
+	for(var i = 0; i < calls.length; i++) {
+		batch.push({'function': calls[i].name, params: calls[i].params});
+	}
+	function rejectAll(error, status, retryAfter) {
+		for(var i = 0; i < calls.length; i++) {
+			fail(api, calls[i], error, status, retryAfter);
+		}
+	}
+	postJSON(api._sherpa.baseurl+'_batch', batch, function(responses) {
+		if(responses && responses.error) {
+			rejectAll(responses.error, 200, 0);
+		} else if(!responses || responses.length !== calls.length) {
+			rejectAll({code: 'sherpaBadResponse', message: 'invalid sherpa batch response, expected ' + calls.length + ' responses'}, 200, 0);
+		} else {
+			for(var i = 0; i < calls.length; i++) {
+				settleBatched(api, responses[i], calls[i]);
+			}
+		}
+	}, rejectAll);
+}
+
+function settleBatched(api, response, call) {
+	settle(response, call.resolve, function(error) {
+		fail(api, call, error, 200, 0);
+	});
+}
+
+// functions marked cacheable in sherpa.json have no side effects. a call of such a function with the same parameters as a call still in progress shares its result.
+// with api._options.cache set, their results are also kept in memory for the number of seconds the server allows, at most cacheMaxEntries results.
+// results are shared between callers, so they must not be modified.
+function cacheGet(api, key) {
+	var e = api._cache[key];
+	if(e && e.expires > Date.now()) {
+		return e;
+	}
+	if(e) {
+		delete api._cache[key];
+	}
+	return null;
+}
+
+function cachePut(api, key, result, maxAge) {
+	var opts = api._options;
+	var now = Date.now();
+	delete api._cache[key];
+	var keys = Object.keys(api._cache);
+	if(keys.length >= opts.cacheMaxEntries) {
+		// drop expired results, and the oldest if that isn't enough.
+		for(var i = 0; i < keys.length; i++) {
+			if(api._cache[keys[i]].expires <= now) {
+				delete api._cache[keys[i]];
+			}
+		}
+		keys = Object.keys(api._cache);
+		for(var j = 0; j <= keys.length - opts.cacheMaxEntries; j++) {
+			delete api._cache[keys[j]];
+		}
+	}
+	api._cache[key] = {result: result, expires: now + maxAge*1000};
+}
+
 function makeFunction(api, name) {
 	return function() {
 		var params = Array.prototype.slice.call(arguments, 0);
-		return api._wrapThenable(thenable(function(resolve, reject) {
-			postJSON(api._sherpa.baseurl+name, {params: params}, function(response) {
-				if(response && response.error) {
-					reject(response.error);
-				} else if(response && response.hasOwnProperty('result')) {
-					resolve(response.result);
-				} else {
-					reject({code: 'sherpaBadResponse', message: "invalid sherpa response object, missing 'result'"});
+		var maxAge = api._sherpa.cacheable ? api._sherpa.cacheable[name] : undefined;
+		var safe = maxAge !== undefined;
+		var key = null;
+		if(safe) {
+			key = name + ' ' + JSON.stringify(params);
+			var cached = api._options.cache ? cacheGet(api, key) : null;
+			if(cached) {
+				return api._wrapThenable(thenable(function(resolve) {
+					resolve(cached.result);
+				}));
+			}
+			if(api._options.dedupe && api._inflight[key]) {
+				return api._wrapThenable(api._inflight[key]);
+			}
+		}
+		var t = thenable(function(resolve, reject) {
+			var call = {name: name, params: params, safe: safe, attempt: 0, resolve: function(result) {
+				if(key !== null && api._inflight[key] === t) {
+					delete api._inflight[key];
 				}
-			}, reject);
-		}));
+				if(key !== null && maxAge > 0 && api._options.cache) {
+					cachePut(api, key, result, maxAge);
+				}
+				resolve(result);
+			}, reject: function(error) {
+				if(key !== null && api._inflight[key] === t) {
+					delete api._inflight[key];
+				}
+				reject(error);
+			}};
+			dispatch(api, call);
+		});
+		if(key !== null && api._options.dedupe) {
+			api._inflight[key] = t;
+		}
+		return api._wrapThenable(t);
+	};
+}
+
+// subscribe calls function "name", which publishes events, see SherpaPublisher, and calls onresult with each result it sends.
+// onerror is called with a sherpa error when the function fails, or when subscribing fails, e.g. for an unknown function or when the server is too busy. the subscription is then closed.
+// onend, if set, is called when the function ends the subscription.
+// the browser reconnects after a lost connection, which calls the function again. close the returned subscription to unsubscribe.
+function subscribe(api, name, params, onresult, onerror, onend) {
+	var closed = false;
+	var source = null;
+
+	function close() {
+		closed = true;
+		if(source) {
+			source.close();
+		}
+	}
+
+	function fail(error) {
+		if(closed) {
+			return;
+		}
+		close();
+		if(onerror) {
+			onerror(error);
+		}
+	}
+
+	if(!window.EventSource) {
+		window.setTimeout(function() {
+			fail({code: 'sherpaClientError', message: 'browser does not support server-sent events'});
+		}, 0);
+		return {close: close};
+	}
+
+	source = new window.EventSource(api._sherpa.baseurl+name+'?body='+encodeURIComponent(JSON.stringify({params: params})));
+	source.onmessage = function onmessage(ev) {
+		var response;
+		try {
+			response = JSON.parse(ev.data);
+		} catch(e) {
+			fail({code: 'sherpaBadResponse', message: 'invalid event: '+e.message});
+			return;
+		}
+		if(response && response.error) {
+			fail(response.error);
+		} else if(response && response.hasOwnProperty('result')) {
+			if(!closed) {
+				onresult(response.result);
+			}
+		} else {
+			fail({code: 'sherpaBadResponse', message: "invalid sherpa event, missing 'result'"});
+		}
+	};
+	source.addEventListener('end', function() {
+		if(closed) {
+			return;
+		}
+		close();
+		if(onend) {
+			onend();
+		}
+	});
+	source.onerror = function onerror(ev) {
+		// the server ends the subscription with an "error" event with a sherpa error when the function fails.
+		if(ev && typeof ev.data === 'string') {
+			var response;
+			try {
+				response = JSON.parse(ev.data);
+			} catch(e) {
+				fail({code: 'sherpaBadResponse', message: 'invalid error event: '+e.message});
+				return;
+			}
+			fail(response && response.error ? response.error : {code: 'sherpaBadResponse', message: "invalid sherpa error event, missing 'error'"});
+			return;
+		}
+		// after a lost connection the browser tries again by itself. it gives up on a response that isn't an event stream, e.g. an error response.
+		if(source.readyState === window.EventSource.CLOSED) {
+			fail({code: 'sherpaClientError', message: 'subscribing to function failed'});
+		}
+	};
+	return {close: close};
+}
+
+function makeSubscribe(api, name) {
+	return function(params, onresult, onerror, onend) {
+		return subscribe(api, name, params || [], onresult, onerror, onend);
 	};
 }
 
@@ -111,15 +371,33 @@ sherpa.init = function init(_sherpa) {
 	}
 
 	function _call(name) {
-		return makeFunction(api, name).apply(Array.prototype.slice.call(arguments, 1));
+		return makeFunction(api, name).apply(null, Array.prototype.slice.call(arguments, 1));
 	}
 
 	api._sherpa = _sherpa;
+	// change the options after init. cache enables the memory cache, retries is the maximum number of retries of a call, retryDelay the initial backoff in milliseconds.
+	api._options = {
+		dedupe: true,
+		cache: false,
+		cacheMaxEntries: 1000,
+		retries: 2,
+		retryDelay: 250
+	};
+	api._inflight = {};
+	api._cache = {};
+	// _clearCache removes all results from the memory cache, e.g. after changing data they depend on.
+	api._clearCache = function _clearCache() {
+		api._cache = {};
+	};
 	api._wrapThenable = _wrapThenable;
 	api._call = _call;
+	api._subscribe = function _subscribe(name, params, onresult, onerror, onend) {
+		return makeSubscribe(api, name)(params, onresult, onerror, onend);
+	};
 	for(var i = 0; i < _sherpa.functions.length; i++) {
 		var fn = _sherpa.functions[i];
 		api[fn] = makeFunction(api, fn);
+		api[fn].subscribe = makeSubscribe(api, fn);
 	}
 
 	return api;
@@ -0,0 +1,124 @@
+package nl.irias.sherpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class BatchCallTest {
+	static final ObjectMapper mapper = new ObjectMapper();
+
+	@SherpaSection(title = "Batch")
+	public static class Fns {
+		@SherpaFunction
+		public static int add(int a, int b) {
+			return a + b;
+		}
+
+		@SherpaFunction
+		public static int fail() throws SherpaUserException {
+			throw new SherpaUserException("nope");
+		}
+
+		@SherpaFunction
+		public static int crash() {
+			throw new IllegalStateException("boom");
+		}
+	}
+
+	static SherpaServlet servlet(SherpaOptions o) throws Exception {
+		return new SherpaServlet("/test/", "test", "Test", "1.0", new Class<?>[]{Fns.class}, null, null, null, null, null, o);
+	}
+
+	static JsonNode batch(SherpaServlet s, String body) throws Exception {
+		FakeHttp.Response r = FakeHttp.post(s, "/_batch", body);
+		assertEquals(200, r.status);
+		return mapper.readTree(r.body());
+	}
+
+	static void assertResult(JsonNode n, String result) {
+		assertEquals(n.toString(), result, n.get("result").toString());
+		assertTrue(n.toString(), n.get("error").isNull());
+	}
+
+	static void assertError(JsonNode n, String code) {
+		assertTrue(n.toString(), n.get("result").isNull());
+		assertEquals(n.toString(), code, n.get("error").get("code").asText());
+	}
+
+	static void mixed(SherpaOptions o) throws Exception {
+		JsonNode l = batch(servlet(o), "[" +
+			"{\"function\": \"add\", \"params\": [1, 2]}," +
+			"{\"function\": \"fail\", \"params\": []}," +
+			"{\"function\": \"add\", \"params\": [3, 4]}," +
+			"{\"function\": \"crash\", \"params\": []}," +
+			"{\"function\": \"missing\", \"params\": []}," +
+			"{\"function\": \"add\", \"params\": [1]}," +
+			"{\"function\": \"add\", \"params\": [\"x\", 1]}," +
+			"{\"function\": 1, \"params\": []}," +
+			"{\"function\": \"_batch\", \"params\": []}," +
+			"{\"function\": \"add\"}" +
+			"]");
+		assertEquals(10, l.size());
+		// one failing call doesn't affect the others, results are in the order of the calls.
+		assertResult(l.get(0), "3");
+		assertError(l.get(1), "sherpaUserError");
+		assertEquals("nope", l.get(1).get("error").get("message").asText());
+		assertResult(l.get(2), "7");
+		assertError(l.get(3), "sherpaServerError");
+		assertError(l.get(4), "sherpaBadFunction");
+		assertError(l.get(5), "sherpaBadRequest");
+		assertEquals("wrong number of parameters: expected 2, got 1", l.get(5).get("error").get("message").asText());
+		assertError(l.get(6), "sherpaBadRequest");
+		assertError(l.get(7), "sherpaBadRequest");
+		assertError(l.get(8), "sherpaBadFunction");
+		assertEquals("batches cannot be nested", l.get(8).get("error").get("message").asText());
+		assertError(l.get(9), "sherpaBadRequest");
+	}
+
+	@Test
+	public void mixedResults() throws Exception {
+		mixed(new SherpaOptions());
+	}
+
+	@Test
+	public void mixedResultsConcurrent() throws Exception {
+		SherpaOptions o = new SherpaOptions();
+		o.batchConcurrency = 4;
+		mixed(o);
+	}
+
+	@Test
+	public void maxCalls() throws Exception {
+		SherpaOptions o = new SherpaOptions();
+		o.batchMaxCalls = 2;
+		SherpaServlet s = servlet(o);
+		JsonNode l = batch(s, "[{\"function\": \"add\", \"params\": [1, 2]}, {\"function\": \"add\", \"params\": [3, 4]}]");
+		assertEquals(2, l.size());
+
+		// the batch as a whole is rejected, no call is made.
+		JsonNode n = batch(s, "[{\"function\": \"add\", \"params\": [1, 2]}, {\"function\": \"add\", \"params\": [3, 4]}, {\"function\": \"add\", \"params\": [5, 6]}]");
+		assertTrue(n.isObject());
+		assertError(n, "sherpaBadRequest");
+		assertEquals("too many calls in batch: maximum 2, got 3", n.get("error").get("message").asText());
+
+		n = batch(s, "{\"function\": \"add\", \"params\": [1, 2]}");
+		assertError(n, "sherpaBadRequest");
+		n = batch(s, "[1]");
+		assertEquals("could not parse batch: call 0 must be an object", n.get("error").get("message").asText());
+
+		assertEquals(0, batch(s, "[]").size());
+	}
+
+	@Test
+	public void disabled() throws Exception {
+		SherpaOptions o = new SherpaOptions();
+		o.batchMaxCalls = 0;
+		FakeHttp.Response r = FakeHttp.post(servlet(o), "/_batch", "[{\"function\": \"add\", \"params\": [1, 2]}]");
+		assertEquals(404, r.status);
+		assertTrue(r.body(), r.body().contains("sherpaBadFunction"));
+	}
+}
@@ -0,0 +1,137 @@
+package nl.irias.sherpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BulkheadTest {
+	static final long MS = 1000*1000L;
+
+	// started returns a start time for a call that took "ms" milliseconds when released now.
+	static long started(long ms) {
+		return System.nanoTime() - ms*MS;
+	}
+
+	@Test
+	public void limit() {
+		Bulkhead b = new Bulkhead(2, 0, 0, false);
+		assertTrue(b.acquire());
+		assertTrue(b.acquire());
+		assertFalse(b.acquire());
+		assertEquals(2, b.active());
+		b.release(started(1));
+		assertEquals(1, b.active());
+		assertTrue(b.acquire());
+		assertFalse(b.acquire());
+	}
+
+	@Test
+	public void waitsForSlot() throws Exception {
+		Bulkhead b = new Bulkhead(1, 1, 5000, false);
+		assertTrue(b.acquire());
+		CountDownLatch waiting = new CountDownLatch(1);
+		CompletableFuture<Boolean> f = CompletableFuture.supplyAsync(() -> {
+			waiting.countDown();
+			return b.acquire();
+		});
+		waiting.await();
+		Thread.sleep(50);
+		assertFalse(f.isDone());
+		b.release(started(1));
+		assertTrue(f.get(5, TimeUnit.SECONDS));
+		assertEquals(1, b.active());
+	}
+
+	@Test
+	public void waitTimesOut() {
+		Bulkhead b = new Bulkhead(1, 1, 50, false);
+		assertTrue(b.acquire());
+		long t0 = System.nanoTime();
+		assertFalse(b.acquire());
+		assertTrue(System.nanoTime() - t0 >= 50*MS);
+		assertEquals(1, b.active());
+	}
+
+	@Test
+	public void queueFull() throws Exception {
+		Bulkhead b = new Bulkhead(1, 1, 5000, false);
+		assertTrue(b.acquire());
+		CountDownLatch waiting = new CountDownLatch(1);
+		CompletableFuture<Boolean> f = CompletableFuture.supplyAsync(() -> {
+			waiting.countDown();
+			return b.acquire();
+		});
+		waiting.await();
+		Thread.sleep(50);
+		// one call waits already, the next is rejected right away.
+		long t0 = System.nanoTime();
+		assertFalse(b.acquire());
+		assertTrue(System.nanoTime() - t0 < 1000*MS);
+		b.release(started(1));
+		assertTrue(f.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void adaptiveShrinks() {
+		Bulkhead b = new Bulkhead(10, 0, 0, true);
+		for (int i = 0; i < 20; i++) {
+			assertTrue(b.acquire());
+			b.release(started(10));
+		}
+		assertEquals(10, b.limit());
+		// latency more than doubled, e.g. calls queue behind a database.
+		assertTrue(b.acquire());
+		b.release(started(50));
+		assertTrue(b.limit() < 10);
+		assertTrue(b.limit() >= 1);
+	}
+
+	@Test
+	public void adaptiveGrows() {
+		Bulkhead b = new Bulkhead(10, 0, 0, true);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(b.acquire());
+			b.release(started(10));
+		}
+		assertTrue(b.acquire());
+		b.release(started(50));
+		int shrunk = b.limit();
+		assertTrue(shrunk < 10);
+		// calls at the limit that are fast again let the limit grow back.
+		for (int i = 0; i < 1000 && b.limit() == shrunk; i++) {
+			for (int j = 0; j < shrunk; j++) {
+				assertTrue(b.acquire());
+			}
+			for (int j = 0; j < shrunk; j++) {
+				b.release(started(10));
+			}
+		}
+		assertTrue(b.limit() > shrunk);
+	}
+
+	@Test
+	public void cancelDoesNotAdapt() {
+		Bulkhead b = new Bulkhead(10, 0, 0, true);
+		for (int i = 0; i < 20; i++) {
+			assertTrue(b.acquire());
+			b.release(started(10));
+		}
+		// calls rejected by another limit take no time, they must not become the latency to compare with.
+		for (int i = 0; i < 20; i++) {
+			assertTrue(b.acquire());
+			b.cancel();
+		}
+		assertEquals(0, b.active());
+		for (int i = 0; i < 20; i++) {
+			assertTrue(b.acquire());
+			b.release(started(10));
+		}
+		assertEquals(10, b.limit());
+	}
+}
@@ -0,0 +1,142 @@
+package nl.irias.sherpa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+
+public class CompressedResponseTest {
+	@SherpaSection(title = "Compressed")
+	public static class Fns {
+		@SherpaFunction
+		public static String repeat(String s, int n) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < n; i++) {
+				sb.append(s);
+			}
+			return sb.toString();
+		}
+	}
+
+	static SherpaServlet servlet() throws Exception {
+		return new SherpaServlet("/test/", "test", "Test", "1.0", new Class<?>[]{Fns.class}, null, null, null, null, null, new SherpaOptions());
+	}
+
+	static FakeHttp.Response repeat(SherpaServlet s, int n, String acceptEncoding) throws Exception {
+		return FakeHttp.call(s, new FakeHttp.Request("POST", "/repeat").header("Accept-Encoding", acceptEncoding).body("{\"params\": [\"abc\", " + n + "]}"));
+	}
+
+	@Test
+	public void negotiate() {
+		assertNull(CompressedResponse.negotiate(null));
+		assertNull(CompressedResponse.negotiate(""));
+		assertNull(CompressedResponse.negotiate("identity"));
+		assertNull(CompressedResponse.negotiate("br"));
+		assertEquals("gzip", CompressedResponse.negotiate("gzip"));
+		assertEquals("deflate", CompressedResponse.negotiate("deflate"));
+		assertEquals("gzip", CompressedResponse.negotiate("GZIP"));
+		assertEquals("gzip", CompressedResponse.negotiate("x-gzip"));
+		assertEquals("gzip", CompressedResponse.negotiate("*"));
+		assertEquals("gzip", CompressedResponse.negotiate("br, gzip, deflate"));
+	}
+
+	@Test
+	public void negotiateQuality() {
+		// gzip wins ties, in either order.
+		assertEquals("gzip", CompressedResponse.negotiate("deflate, gzip"));
+		assertEquals("gzip", CompressedResponse.negotiate("deflate;q=0.5, gzip;q=0.5"));
+		assertEquals("deflate", CompressedResponse.negotiate("gzip;q=0.5, deflate"));
+		assertEquals("deflate", CompressedResponse.negotiate("gzip; q=0.2, deflate; q=0.8"));
+		// q=0 means not acceptable.
+		assertNull(CompressedResponse.negotiate("gzip;q=0"));
+		assertEquals("deflate", CompressedResponse.negotiate("gzip;q=0, deflate"));
+		assertNull(CompressedResponse.negotiate("gzip;q=0, deflate;q=0"));
+		// an invalid quality counts as not acceptable.
+		assertNull(CompressedResponse.negotiate("gzip;q=x"));
+	}
+
+	@Test
+	public void negotiateWildcard() {
+		// explicit encodings take precedence over *, in either order.
+		assertEquals("deflate", CompressedResponse.negotiate("*, gzip;q=0"));
+		assertEquals("deflate", CompressedResponse.negotiate("gzip;q=0, *"));
+		assertNull(CompressedResponse.negotiate("*, gzip;q=0, deflate;q=0"));
+		assertEquals("deflate", CompressedResponse.negotiate("deflate, *;q=0.5"));
+		assertEquals("gzip", CompressedResponse.negotiate("*;q=0, gzip"));
+		assertNull(CompressedResponse.negotiate("*;q=0"));
+		assertNull(CompressedResponse.negotiate("identity, *;q=0"));
+	}
+
+	@Test
+	public void endWithoutFinish() throws IOException {
+		FakeHttp.Response resp = new FakeHttp.Response();
+		CompressedResponse r = new CompressedResponse(resp.proxy(), "gzip", 10);
+		r.getOutputStream().write(new byte[100]);
+		assertEquals("gzip", resp.header("Content-Encoding"));
+		// e.g. the function failed halfway a streamed result, the deflater is ended without writing the rest.
+		int n = resp.body.size();
+		r.end();
+		assertEquals(n, resp.body.size());
+		try {
+			r.getOutputStream().write(new byte[100]);
+			fail("write after end");
+		} catch (NullPointerException e) {
+			// the deflater is closed.
+		}
+		// ending after finish is fine.
+		r = new CompressedResponse(resp.proxy(), "deflate", 10);
+		r.getOutputStream().write(new byte[100]);
+		r.finish();
+		r.end();
+	}
+
+	@Test
+	public void compress() throws IOException {
+		byte[] data = "{\"result\":\"aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa\",\"error\":null}".getBytes(StandardCharsets.UTF_8);
+		assertArrayEquals(data, read(new GZIPInputStream(new ByteArrayInputStream(CompressedResponse.compress(data, "gzip")))));
+		assertArrayEquals(data, read(new InflaterInputStream(new ByteArrayInputStream(CompressedResponse.compress(data, "deflate")))));
+	}
+
+	@Test
+	public void contentLength() throws Exception {
+		SherpaServlet s = servlet();
+
+		// buffered and above the threshold: compressed in one pass, with the compressed length.
+		FakeHttp.Response r = repeat(s, 1000, "gzip");
+		assertEquals("gzip", r.header("Content-Encoding"));
+		assertEquals(r.body.size(), r.contentLength);
+		assertTrue(r.contentLength < 1000);
+		String body = new String(read(new GZIPInputStream(new ByteArrayInputStream(r.body.toByteArray()))), StandardCharsets.UTF_8);
+		assertEquals("{\"result\":\"" + Fns.repeat("abc", 1000) + "\",\"error\":null}", body);
+
+		r = repeat(s, 1000, "deflate");
+		assertEquals("deflate", r.header("Content-Encoding"));
+		assertEquals(r.body.size(), r.contentLength);
+
+		// below the threshold: uncompressed, with its length.
+		r = repeat(s, 10, "gzip");
+		assertNull(r.header("Content-Encoding"));
+		assertEquals(r.body.size(), r.contentLength);
+		assertEquals("{\"result\":\"" + Fns.repeat("abc", 10) + "\",\"error\":null}", r.body());
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		for (int n; (n = in.read(buf)) >= 0;) {
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,228 @@
+package nl.irias.sherpa;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+// FakeHttp has minimal requests and responses for calling the servlet without a container. Async is not supported.
+class FakeHttp {
+	// call passes request r to the servlet and returns the response.
+	static Response call(SherpaServlet servlet, Request r) throws Exception {
+		Response resp = new Response();
+		if (r.method.equals("GET")) {
+			servlet.doGet(r.proxy(), resp.proxy());
+		} else {
+			servlet.doPost(r.proxy(), resp.proxy());
+		}
+		return resp;
+	}
+
+	static Response post(SherpaServlet servlet, String path, String body) throws Exception {
+		return call(servlet, new Request("POST", path).body(body));
+	}
+
+	static class Request {
+		final String method;
+		final String path;
+		final Map<String, String> headers = new LinkedHashMap<>();
+		final Map<String, String> params = new LinkedHashMap<>();
+		byte[] body = new byte[0];
+		String remoteAddr = "127.0.0.1";
+
+		Request(String method, String path) {
+			this.method = method;
+			this.path = path;
+			headers.put("host", "localhost");
+		}
+
+		Request header(String name, String value) {
+			headers.put(name.toLowerCase(), value);
+			return this;
+		}
+
+		Request param(String name, String value) {
+			params.put(name, value);
+			return this;
+		}
+
+		Request body(String s) {
+			body = s.getBytes(StandardCharsets.UTF_8);
+			return header("Content-Type", "application/json");
+		}
+
+		HttpServletRequest proxy() {
+			ServletInputStream in = new ServletInputStream() {
+				final ByteArrayInputStream b = new ByteArrayInputStream(body);
+
+				@Override
+				public int read() {
+					return b.read();
+				}
+
+				@Override
+				public int read(byte[] buf, int off, int len) {
+					return b.read(buf, off, len);
+				}
+
+				@Override
+				public boolean isFinished() {
+					return b.available() == 0;
+				}
+
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+
+				@Override
+				public void setReadListener(ReadListener l) {
+					throw new IllegalStateException("no async");
+				}
+			};
+			return (HttpServletRequest)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{HttpServletRequest.class}, (Object p, Method m, Object[] args) -> {
+				switch (m.getName()) {
+				case "getMethod":
+					return method;
+				case "getPathInfo":
+					return path;
+				case "getHeader":
+					return headers.get(((String)args[0]).toLowerCase());
+				case "getParameter":
+					return params.get((String)args[0]);
+				case "getQueryString":
+					return query();
+				case "getInputStream":
+					return in;
+				case "getContentType":
+					return headers.get("content-type");
+				case "getContentLength":
+					return body.length;
+				case "getContentLengthLong":
+					return (long)body.length;
+				case "getCharacterEncoding":
+				case "getAttribute":
+					return null;
+				case "isAsyncSupported":
+					return false;
+				case "getRemoteAddr":
+					return remoteAddr;
+				default:
+					throw new UnsupportedOperationException("request." + m.getName());
+				}
+			});
+		}
+
+		private String query() {
+			if (params.isEmpty()) {
+				return null;
+			}
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, String> e : params.entrySet()) {
+				try {
+					sb.append(sb.length() > 0 ? "&" : "").append(e.getKey()).append('=').append(URLEncoder.encode(e.getValue(), "UTF-8"));
+				} catch (IOException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+	static class Response {
+		int status = HttpServletResponse.SC_OK;
+		final Map<String, List<String>> headers = new LinkedHashMap<>();
+		String contentType;
+		long contentLength = -1;
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		final ServletOutputStream out = new ServletOutputStream() {
+			@Override
+			public void write(int b) {
+				body.write(b);
+			}
+
+			@Override
+			public void write(byte[] buf, int off, int len) {
+				body.write(buf, off, len);
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setWriteListener(WriteListener l) {
+				throw new IllegalStateException("no async");
+			}
+		};
+
+		String header(String name) {
+			List<String> l = headers.get(name.toLowerCase());
+			return l == null ? null : l.get(0);
+		}
+
+		String body() {
+			return new String(body.toByteArray(), StandardCharsets.UTF_8);
+		}
+
+		HttpServletResponse proxy() {
+			return (HttpServletResponse)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{HttpServletResponse.class}, (Object p, Method m, Object[] args) -> {
+				switch (m.getName()) {
+				case "setStatus":
+					status = (Integer)args[0];
+					return null;
+				case "getStatus":
+					return status;
+				case "setHeader": {
+					List<String> l = new ArrayList<>();
+					l.add((String)args[1]);
+					headers.put(((String)args[0]).toLowerCase(), l);
+					return null;
+				}
+				case "addHeader":
+					headers.computeIfAbsent(((String)args[0]).toLowerCase(), k -> new ArrayList<>()).add((String)args[1]);
+					return null;
+				case "containsHeader":
+					return headers.containsKey(((String)args[0]).toLowerCase());
+				case "getHeader":
+					return header((String)args[0]);
+				case "setContentType":
+					contentType = (String)args[0];
+					return null;
+				case "getContentType":
+					return contentType;
+				case "setContentLength":
+					contentLength = (Integer)args[0];
+					return null;
+				case "setContentLengthLong":
+					contentLength = (Long)args[0];
+					return null;
+				case "getOutputStream":
+					return out;
+				case "isCommitted":
+					return body.size() > 0;
+				case "setCharacterEncoding":
+				case "flushBuffer":
+					return null;
+				default:
+					throw new UnsupportedOperationException("response." + m.getName());
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package nl.irias.sherpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class HttpCachingTest {
+	static final AtomicInteger calls = new AtomicInteger();
+	static volatile int version = 1;
+
+	@SherpaSection(title = "Caching")
+	public static class Fns {
+		@SherpaFunction(httpMaxAge = 60, httpPublic = true)
+		public static String plain(int id) {
+			calls.incrementAndGet();
+			return "p" + id;
+		}
+
+		@SherpaFunction(httpMaxAge = 30, httpVersion = "docVersion")
+		public static String doc(int id) {
+			calls.incrementAndGet();
+			return "d" + id + "v" + version;
+		}
+
+		public static int docVersion(int id) {
+			return version*100 + id;
+		}
+
+		@SherpaFunction(httpMaxAge = 30)
+		public static String fail(int id) throws SherpaUserException {
+			throw new SherpaUserException("no");
+		}
+	}
+
+	static SherpaServlet servlet() throws Exception {
+		return new SherpaServlet("/test/", "test", "Test", "1.0", new Class<?>[]{Fns.class}, null, null, null, null, null, new SherpaOptions());
+	}
+
+	static FakeHttp.Response get(SherpaServlet s, String fn, String params, String... headers) throws Exception {
+		FakeHttp.Request r = new FakeHttp.Request("GET", "/" + fn).param("body", "{\"params\":" + params + "}");
+		for (int i = 0; i < headers.length; i += 2) {
+			r.header(headers[i], headers[i+1]);
+		}
+		return FakeHttp.call(s, r);
+	}
+
+	@Test
+	public void etag() throws Exception {
+		SherpaServlet s = servlet();
+		FakeHttp.Response r = get(s, "plain", "[1]");
+		assertEquals(200, r.status);
+		assertEquals("{\"result\":\"p1\",\"error\":null}", r.body());
+		assertTrue(r.header("Cache-Control"), r.header("Cache-Control").contains("max-age=60"));
+		assertTrue(r.header("Cache-Control"), r.header("Cache-Control").contains("public"));
+		String etag = r.header("ETag");
+		assertNotNull(etag);
+		assertTrue(etag, etag.startsWith("W/\""));
+
+		for (String ifNoneMatch : new String[]{etag, etag.substring(2), "\"x\", " + etag, "\"x\"," + etag.substring(2) + " , \"y\""}) {
+			r = get(s, "plain", "[1]", "If-None-Match", ifNoneMatch);
+			assertEquals(ifNoneMatch, 304, r.status);
+			assertEquals(0, r.body.size());
+			assertEquals(etag, r.header("ETag"));
+		}
+
+		// a different result has a different ETag.
+		r = get(s, "plain", "[2]", "If-None-Match", etag);
+		assertEquals(200, r.status);
+		assertEquals("{\"result\":\"p2\",\"error\":null}", r.body());
+		assertNotNull(r.header("ETag"));
+		assertNotEquals(etag, r.header("ETag"));
+
+		r = get(s, "plain", "[1]", "If-None-Match", "W/\"x\"");
+		assertEquals(200, r.status);
+		assertEquals(etag, r.header("ETag"));
+		assertEquals("{\"result\":\"p1\",\"error\":null}", r.body());
+	}
+
+	@Test
+	public void notCached() throws Exception {
+		SherpaServlet s = servlet();
+		// POST calls and errors don't get an ETag.
+		FakeHttp.Response r = FakeHttp.post(s, "/plain", "{\"params\":[1]}");
+		assertEquals(200, r.status);
+		assertNull(r.header("ETag"));
+		assertEquals("no-store", r.header("Cache-Control"));
+
+		r = get(s, "fail", "[1]");
+		assertNull(r.header("ETag"));
+		assertTrue(r.body(), r.body().contains("\"message\":\"no\""));
+	}
+
+	@Test
+	public void version() throws Exception {
+		SherpaServlet s = servlet();
+		version = 1;
+		FakeHttp.Response r = get(s, "doc", "[1]");
+		assertEquals(200, r.status);
+		String etag = r.header("ETag");
+		assertNotNull(etag);
+
+		// the client has the current version, the function isn't called.
+		int n = calls.get();
+		r = get(s, "doc", "[1]", "If-None-Match", etag);
+		assertEquals(304, r.status);
+		assertEquals(0, r.body.size());
+		assertEquals(etag, r.header("ETag"));
+		assertEquals(n, calls.get());
+
+		version = 2;
+		r = get(s, "doc", "[1]", "If-None-Match", etag);
+		assertEquals(200, r.status);
+		assertEquals("{\"result\":\"d1v2\",\"error\":null}", r.body());
+		assertNotEquals(etag, r.header("ETag"));
+		assertEquals(n + 1, calls.get());
+	}
+}
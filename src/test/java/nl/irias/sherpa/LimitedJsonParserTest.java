@@ -0,0 +1,113 @@
+package nl.irias.sherpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class LimitedJsonParserTest {
+	static final ObjectMapper mapper = new ObjectMapper();
+
+	static JsonParser parser(String json, int maxDepth, int maxArrayLength) throws IOException {
+		return new LimitedJsonParser(mapper.getFactory().createParser(json), maxDepth, maxArrayLength);
+	}
+
+	// tokens reads all tokens, returning the number read.
+	static int tokens(String json, int maxDepth, int maxArrayLength) throws IOException {
+		try (JsonParser p = parser(json, maxDepth, maxArrayLength)) {
+			int n = 0;
+			while (p.nextToken() != null) {
+				n++;
+			}
+			return n;
+		}
+	}
+
+	static void limited(String json, int maxDepth, int maxArrayLength, String message) throws IOException {
+		try {
+			tokens(json, maxDepth, maxArrayLength);
+			fail("expected limit exception for " + json);
+		} catch (SherpaServlet.LimitException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(message));
+		}
+	}
+
+	@Test
+	public void depth() throws IOException {
+		assertEquals(7, tokens("[[[1]]]", 3, 0));
+		assertEquals(8, tokens("{\"a\":{\"b\":[]}}", 3, 0));
+		limited("[[[[1]]]]", 3, 0, "nested at most 3 deep");
+		limited("{\"a\":{\"b\":{\"c\":[]}}}", 3, 0, "nested at most 3 deep");
+		// siblings don't add up.
+		assertEquals(11, tokens("[[1],[2],[3]]", 2, 0));
+	}
+
+	@Test
+	public void arrayLength() throws IOException {
+		assertEquals(5, tokens("[1,2,3]", 0, 3));
+		limited("[1,2,3,4]", 0, 3, "at most 3 elements");
+		// objects and arrays count as one element.
+		assertEquals(10, tokens("[{},[],{\"a\":1}]", 0, 3));
+		limited("[{},[],{},[]]", 0, 3, "at most 3 elements");
+		// the limit applies to nested arrays, but not to the number of fields of an object.
+		limited("[[1,2,3,4]]", 0, 3, "at most 3 elements");
+		assertEquals(10, tokens("{\"a\":1,\"b\":2,\"c\":3,\"d\":4}", 0, 3));
+	}
+
+	@Test
+	public void noLimits() throws IOException {
+		assertEquals(17, tokens("[[[[[[1,2,3,4,5]]]]]]", 0, 0));
+	}
+
+	@Test
+	public void skipChildren() throws IOException {
+		try (JsonParser p = parser("[[1,2,3,4],5]", 0, 3)) {
+			assertEquals(JsonToken.START_ARRAY, p.nextToken());
+			assertEquals(JsonToken.START_ARRAY, p.nextToken());
+			p.skipChildren();
+			fail("skipChildren must apply the limits");
+		} catch (SherpaServlet.LimitException e) {
+			// expected
+		}
+		try (JsonParser p = parser("[[1,2],3]", 0, 3)) {
+			p.nextToken();
+			p.nextToken();
+			p.skipChildren();
+			assertEquals(JsonToken.END_ARRAY, p.getCurrentToken());
+			assertEquals(JsonToken.VALUE_NUMBER_INT, p.nextToken());
+			assertEquals(3, p.getIntValue());
+			assertEquals(JsonToken.END_ARRAY, p.nextToken());
+			assertNull(p.nextToken());
+		}
+	}
+
+	@Test
+	public void deserializers() throws IOException {
+		// deserializers read through the limited parser, before building the value.
+		try (JsonParser p = parser("{\"a\":[1,2,3]}", 2, 3)) {
+			JsonNode n = mapper.readTree(p);
+			assertEquals(3, n.get("a").size());
+		}
+		try (JsonParser p = parser("{\"a\":[1,2,3,4]}", 2, 3)) {
+			mapper.readTree(p);
+			fail("expected limit exception");
+		} catch (SherpaServlet.LimitException e) {
+			// expected
+		}
+		try (JsonParser p = parser("{\"a\":[[1]]}", 2, 3)) {
+			mapper.readValue(p, Object.class);
+			fail("expected limit exception");
+		} catch (SherpaServlet.LimitException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package nl.irias.sherpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+	static final long SECOND = 1000*1000*1000L;
+
+	@Test
+	public void burst() {
+		RateLimiter r = new RateLimiter(1, 3, 1000);
+		long now = 1000*SECOND;
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, r.acquire("a", now));
+		}
+		long wait = r.acquire("a", now);
+		assertTrue(wait > 0);
+		assertTrue(wait <= SECOND);
+	}
+
+	@Test
+	public void refills() {
+		// 2 calls per second, a token every half second.
+		RateLimiter r = new RateLimiter(2, 1, 1000);
+		long now = 1000*SECOND;
+		assertEquals(0, r.acquire("a", now));
+		long wait = r.acquire("a", now);
+		assertEquals(SECOND/2, wait);
+		assertTrue(r.acquire("a", now + SECOND/4) > 0);
+		assertEquals(0, r.acquire("a", now + SECOND/2));
+		// an idle client gets no more than a full burst.
+		now += 100*SECOND;
+		assertEquals(0, r.acquire("a", now));
+		assertTrue(r.acquire("a", now) > 0);
+	}
+
+	@Test
+	public void rejectedCallsTakeNoTokens() {
+		RateLimiter r = new RateLimiter(1, 1, 1000);
+		long now = 1000*SECOND;
+		assertEquals(0, r.acquire("a", now));
+		for (int i = 0; i < 10; i++) {
+			assertTrue(r.acquire("a", now + i*SECOND/20) > 0);
+		}
+		assertEquals(0, r.acquire("a", now + SECOND));
+	}
+
+	@Test
+	public void perClient() {
+		RateLimiter r = new RateLimiter(1, 1, 1000);
+		long now = 1000*SECOND;
+		assertEquals(0, r.acquire("a", now));
+		assertTrue(r.acquire("a", now) > 0);
+		assertEquals(0, r.acquire("b", now));
+	}
+
+	@Test
+	public void evictsIdleClients() {
+		// one bucket per stripe, a client in the same stripe evicts the other, which then starts with a full bucket again.
+		RateLimiter r = new RateLimiter(1, 1, RateLimiter.STRIPES);
+		long now = 1000*SECOND;
+		String a = "a";
+		String b = null;
+		for (int i = 0; b == null; i++) {
+			String s = "c" + i;
+			if ((s.hashCode() & 0x7fffffff) % RateLimiter.STRIPES == (a.hashCode() & 0x7fffffff) % RateLimiter.STRIPES) {
+				b = s;
+			}
+		}
+		assertEquals(0, r.acquire(a, now));
+		assertTrue(r.acquire(a, now) > 0);
+		assertEquals(0, r.acquire(b, now));
+		assertEquals(0, r.acquire(a, now));
+	}
+}
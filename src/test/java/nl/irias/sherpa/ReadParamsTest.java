@@ -0,0 +1,96 @@
+package nl.irias.sherpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ReadParamsTest {
+	@SherpaSection(title = "Params")
+	public static class Fns {
+		@SherpaFunction
+		public static String f(int a, String b, List<Integer> c) {
+			return a + " " + b + " " + c;
+		}
+
+		@SherpaFunction
+		public static int size(Map<String, Integer> m) {
+			return m.size();
+		}
+
+		@SherpaFunction
+		public static int none() {
+			return 1;
+		}
+	}
+
+	static SherpaServlet servlet() throws Exception {
+		return new SherpaServlet("/test/", "test", "Test", "1.0", new Class<?>[]{Fns.class}, null, null, null, null, null, new SherpaOptions());
+	}
+
+	static JsonNode call(SherpaServlet s, String fn, String body) throws Exception {
+		FakeHttp.Response r = FakeHttp.post(s, "/" + fn, body);
+		assertEquals(200, r.status);
+		return new ObjectMapper().readTree(r.body());
+	}
+
+	static void assertBadRequest(JsonNode n, String message) {
+		assertTrue(n.toString(), n.get("result").isNull());
+		assertEquals("sherpaBadRequest", n.get("error").get("code").asText());
+		assertEquals(message, n.get("error").get("message").asText());
+	}
+
+	@Test
+	public void ok() throws Exception {
+		SherpaServlet s = servlet();
+		assertEquals("\"1 x [2, 3]\"", call(s, "f", "{\"params\": [1, \"x\", [2, 3]]}").get("result").toString());
+		assertEquals("2", call(s, "size", "{\"params\": [{\"a\": 1, \"b\": 2}]}").get("result").toString());
+		assertEquals("1", call(s, "none", "{\"params\": []}").get("result").toString());
+	}
+
+	@Test
+	public void wrongCount() throws Exception {
+		SherpaServlet s = servlet();
+		long protocolErrors = s.metrics.protocolErrors.sum();
+		assertBadRequest(call(s, "f", "{\"params\": [1, \"x\"]}"), "wrong number of parameters: expected 3, got 2");
+		assertBadRequest(call(s, "f", "{\"params\": [1, \"x\", [], {\"nested\": [1, 2]}, 5]}"), "wrong number of parameters: expected 3, got 5");
+		assertBadRequest(call(s, "f", "{\"params\": []}"), "wrong number of parameters: expected 3, got 0");
+		assertBadRequest(call(s, "none", "{\"params\": [1]}"), "wrong number of parameters: expected 0, got 1");
+		// the wrong number of parameters is a protocol error, the client doesn't know the api.
+		assertEquals(protocolErrors + 4, s.metrics.protocolErrors.sum());
+	}
+
+	@Test
+	public void wrongType() throws Exception {
+		SherpaServlet s = servlet();
+		long protocolErrors = s.metrics.protocolErrors.sum();
+		JsonNode n = call(s, "f", "{\"params\": [\"x\", \"x\", []]}");
+		assertEquals("sherpaBadRequest", n.get("error").get("code").asText());
+		assertTrue(n.toString(), n.get("error").get("message").asText().startsWith("could not parse parameter 0: Cannot deserialize value of type `int` from String \"x\""));
+
+		n = call(s, "f", "{\"params\": [1, \"x\", {}]}");
+		assertEquals("sherpaBadRequest", n.get("error").get("code").asText());
+		assertTrue(n.toString(), n.get("error").get("message").asText().startsWith("could not parse parameter 2: "));
+
+		n = call(s, "size", "{\"params\": [{\"a\": \"b\"}]}");
+		assertEquals("sherpaBadRequest", n.get("error").get("code").asText());
+		assertTrue(n.toString(), n.get("error").get("message").asText().startsWith("could not parse parameter 0: "));
+		// a value of the wrong type is a user error, not a protocol error.
+		assertEquals(protocolErrors, s.metrics.protocolErrors.sum());
+	}
+
+	@Test
+	public void malformed() throws Exception {
+		SherpaServlet s = servlet();
+		assertBadRequest(call(s, "none", "[]"), "could not parse request parameters: request must be an object");
+		assertBadRequest(call(s, "none", "{}"), "could not parse request parameters: missing params");
+		assertBadRequest(call(s, "none", "{\"params\": {}}"), "could not parse request parameters: params must be an array");
+		assertBadRequest(call(s, "none", "{\"params\": [], \"x\": 1}"), "could not parse request parameters: unrecognized field \"x\"");
+	}
+}
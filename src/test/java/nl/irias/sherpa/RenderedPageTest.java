@@ -0,0 +1,85 @@
+package nl.irias.sherpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RenderedPageTest {
+	@SherpaSection(title = "Pages")
+	public static class Fns {
+		@SherpaFunction
+		public static int add(int a, int b) {
+			return a + b;
+		}
+	}
+
+	static SherpaServlet servlet() throws Exception {
+		return new SherpaServlet("/test/", "test", "Test", "1.0", new Class<?>[]{Fns.class}, null, null, null, null, null, new SherpaOptions());
+	}
+
+	static FakeHttp.Response get(SherpaServlet s, String path, String... headers) throws Exception {
+		FakeHttp.Request r = new FakeHttp.Request("GET", path);
+		for (int i = 0; i < headers.length; i += 2) {
+			r.header(headers[i], headers[i+1]);
+		}
+		return FakeHttp.call(s, r);
+	}
+
+	@Test
+	public void etagMatches() {
+		assertTrue(RenderedPage.etagMatches("\"a\"", "\"a\""));
+		assertTrue(RenderedPage.etagMatches("W/\"a\"", "\"a\""));
+		assertTrue(RenderedPage.etagMatches("\"a\"", "W/\"a\""));
+		assertTrue(RenderedPage.etagMatches("\"x\", W/\"a\" ,\"y\"", "\"a\""));
+		assertTrue(RenderedPage.etagMatches("*", "\"a\""));
+		assertFalse(RenderedPage.etagMatches("\"b\"", "\"a\""));
+		assertFalse(RenderedPage.etagMatches("a", "\"a\""));
+		assertFalse(RenderedPage.etagMatches("\"a-gzip\"", "\"a\""));
+	}
+
+	@Test
+	public void notModified() throws Exception {
+		SherpaServlet s = servlet();
+		FakeHttp.Response r = get(s, "/sherpa.json");
+		assertEquals(200, r.status);
+		String etag = r.header("ETag");
+		assertNotNull(etag);
+		assertTrue(r.body().startsWith("{\"id\":\"test\""));
+		assertEquals(r.body.size(), r.contentLength);
+
+		for (String ifNoneMatch : new String[]{etag, "W/" + etag, "\"x\", " + etag, "\"x\",W/" + etag + ", \"y\""}) {
+			r = get(s, "/sherpa.json", "If-None-Match", ifNoneMatch);
+			assertEquals(ifNoneMatch, 304, r.status);
+			assertEquals(0, r.body.size());
+			assertEquals(etag, r.header("ETag"));
+		}
+
+		r = get(s, "/sherpa.json", "If-None-Match", "\"x\", \"y\"");
+		assertEquals(200, r.status);
+		assertEquals(etag, r.header("ETag"));
+		assertTrue(r.body().startsWith("{\"id\":\"test\""));
+	}
+
+	@Test
+	public void notModifiedCompressed() throws Exception {
+		SherpaServlet s = servlet();
+		FakeHttp.Response r = get(s, "/sherpa.js", "Accept-Encoding", "gzip");
+		assertEquals(200, r.status);
+		assertEquals("gzip", r.header("Content-Encoding"));
+		String etag = r.header("ETag");
+		assertTrue(etag, etag.endsWith("-gzip\""));
+
+		r = get(s, "/sherpa.js", "Accept-Encoding", "gzip", "If-None-Match", etag);
+		assertEquals(304, r.status);
+		assertEquals(0, r.body.size());
+
+		// the compressed body is a different representation than the uncompressed one.
+		r = get(s, "/sherpa.js", "If-None-Match", etag);
+		assertEquals(200, r.status);
+		assertNull(r.header("Content-Encoding"));
+	}
+}
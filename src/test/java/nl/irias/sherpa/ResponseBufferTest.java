@@ -0,0 +1,257 @@
+package nl.irias.sherpa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+public class ResponseBufferTest {
+	// Response records the body and Content-Length written to an HttpServletResponse.
+	static class Response {
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		int contentLength = -1;
+		int writes;
+		final ServletOutputStream out = new ServletOutputStream() {
+			@Override
+			public void write(int b) {
+				writes++;
+				body.write(b);
+			}
+
+			@Override
+			public void write(byte[] buf, int off, int len) {
+				writes++;
+				body.write(buf, off, len);
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setWriteListener(WriteListener l) {
+			}
+		};
+
+		HttpServletResponse proxy() {
+			return (HttpServletResponse)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{HttpServletResponse.class}, (Object p, Method m, Object[] args) -> {
+				switch (m.getName()) {
+				case "getOutputStream":
+					return out;
+				case "setContentLength":
+					contentLength = (Integer)args[0];
+					return null;
+				default:
+					throw new UnsupportedOperationException(m.getName());
+				}
+			});
+		}
+	}
+
+	// Collector records the last sherpaResponseBuffered call.
+	static class Collector implements SherpaCollector {
+		int buffered;
+		boolean pooled;
+		int grown;
+		boolean streamed;
+
+		@Override
+		public void sherpaProtocolError() {
+		}
+
+		@Override
+		public void sherpaBadFunction() {
+		}
+
+		@Override
+		public void sherpaJavascript() {
+		}
+
+		@Override
+		public void sherpaJSON() {
+		}
+
+		@Override
+		public void sherpaFunctionCalled(String name, boolean error, boolean serverError, double duration) {
+		}
+
+		@Override
+		public void sherpaResponseBuffered(boolean pooled, int grown, boolean streamed) {
+			this.buffered++;
+			this.pooled = pooled;
+			this.grown = grown;
+			this.streamed = streamed;
+		}
+	}
+
+	static byte[] bytes(int n) {
+		byte[] buf = new byte[n];
+		Arrays.fill(buf, (byte)'x');
+		return buf;
+	}
+
+	@Test
+	public void buffered() throws IOException {
+		BufferPool pool = new BufferPool(4, 64);
+		Collector c = new Collector();
+		Response r = new Response();
+		try (ResponseBuffer out = new ResponseBuffer(pool, c, r.proxy(), 1024)) {
+			out.write('{');
+			out.write("\"result\":1}".getBytes(StandardCharsets.UTF_8));
+			assertEquals(0, r.body.size());
+			assertEquals(12, out.done());
+		}
+		assertEquals("{\"result\":1}", r.body.toString("UTF-8"));
+		assertEquals(12, r.contentLength);
+		assertEquals(1, r.writes);
+		assertEquals(1, pool.size());
+		assertEquals(1, c.buffered);
+		assertFalse(c.pooled);
+		assertFalse(c.streamed);
+
+		// the next response gets the buffer from the pool.
+		r = new Response();
+		try (ResponseBuffer out = new ResponseBuffer(pool, c, r.proxy(), 1024)) {
+			out.write(bytes(10));
+			out.done();
+		}
+		assertEquals(10, r.contentLength);
+		assertTrue(c.pooled);
+		assertEquals(1, pool.size());
+	}
+
+	@Test
+	public void failedBeforeDone() throws IOException {
+		BufferPool pool = new BufferPool(4, 64);
+		Collector c = new Collector();
+		Response r = new Response();
+		try (ResponseBuffer out = new ResponseBuffer(pool, c, r.proxy(), 1024)) {
+			out.write("{\"result\":{\"a\":".getBytes(StandardCharsets.UTF_8));
+			throw new IOException("serializing failed");
+		} catch (IOException e) {
+			assertEquals("serializing failed", e.getMessage());
+		}
+		// nothing was sent, so the response can still be an error.
+		assertEquals(0, r.body.size());
+		assertEquals(-1, r.contentLength);
+		assertEquals(1, pool.size());
+		assertEquals(1, c.buffered);
+	}
+
+	@Test
+	public void grows() throws IOException {
+		BufferPool pool = new BufferPool(4, 16);
+		Collector c = new Collector();
+		Response r = new Response();
+		try (ResponseBuffer out = new ResponseBuffer(pool, c, r.proxy(), 1024)) {
+			for (int i = 0; i < 100; i++) {
+				out.write('x');
+			}
+			out.write(bytes(100));
+			out.done();
+		}
+		assertArrayEquals(bytes(200), r.body.toByteArray());
+		assertEquals(200, r.contentLength);
+		assertTrue(c.grown > 0);
+		assertFalse(c.streamed);
+		// the grown buffer is kept.
+		assertEquals(1, pool.size());
+		assertTrue(pool.poll().length >= 200);
+	}
+
+	@Test
+	public void streamsOverLimit() throws IOException {
+		BufferPool pool = new BufferPool(4, 16);
+		Collector c = new Collector();
+		Response r = new Response();
+		try (ResponseBuffer out = new ResponseBuffer(pool, c, r.proxy(), 64)) {
+			out.write(bytes(60));
+			assertEquals(0, r.body.size());
+			out.write(bytes(10));
+			// the buffered part is written as soon as the limit is exceeded, the rest directly.
+			assertEquals(70, r.body.size());
+			out.write('x');
+			assertEquals(71, out.done());
+		}
+		assertArrayEquals(bytes(71), r.body.toByteArray());
+		assertEquals(-1, r.contentLength);
+		assertTrue(c.streamed);
+		assertEquals(1, pool.size());
+	}
+
+	@Test
+	public void streamedFailure() throws IOException {
+		// once streaming, the response is committed and a failure can't be undone, but the buffer still goes back to the pool once.
+		BufferPool pool = new BufferPool(4, 16);
+		Collector c = new Collector();
+		Response r = new Response();
+		try (ResponseBuffer out = new ResponseBuffer(pool, c, r.proxy(), 32)) {
+			out.write(bytes(40));
+			throw new IOException("serializing failed");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(40, r.body.size());
+		assertEquals(1, pool.size());
+		assertEquals(1, c.buffered);
+	}
+
+	@Test
+	public void unbuffered() throws IOException {
+		BufferPool pool = new BufferPool(4, 16);
+		Collector c = new Collector();
+		Response r = new Response();
+		try (ResponseBuffer out = new ResponseBuffer(pool, c, r.proxy(), 0)) {
+			out.write(bytes(10));
+			assertEquals(10, r.body.size());
+			out.done();
+		}
+		assertEquals(-1, r.contentLength);
+		assertEquals(0, pool.size());
+		assertEquals(0, c.buffered);
+	}
+
+	@Test
+	public void closeTwice() throws IOException {
+		BufferPool pool = new BufferPool(4, 16);
+		Collector c = new Collector();
+		Response r = new Response();
+		ResponseBuffer out = new ResponseBuffer(pool, c, r.proxy(), 1024);
+		out.write(bytes(5));
+		out.done();
+		out.close();
+		out.close();
+		assertEquals(5, r.body.size());
+		assertEquals(1, pool.size());
+		assertEquals(1, c.buffered);
+	}
+
+	@Test
+	public void poolDisabled() throws IOException {
+		BufferPool pool = new BufferPool(0, 16);
+		Collector c = new Collector();
+		Response r = new Response();
+		try (ResponseBuffer out = new ResponseBuffer(pool, c, r.proxy(), 1024)) {
+			out.write(bytes(5));
+			out.done();
+		}
+		assertEquals(5, r.contentLength);
+		assertEquals(0, pool.size());
+		assertNull(pool.poll());
+	}
+}
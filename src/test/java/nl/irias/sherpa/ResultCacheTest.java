@@ -0,0 +1,94 @@
+package nl.irias.sherpa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class ResultCacheTest {
+	static final long SECOND = 1000*1000*1000L;
+
+	static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void storeAndGet() {
+		ResultCache c = new ResultCache(10*SECOND, 10);
+		long now = 1000*SECOND;
+		assertNull(c.get("a", now));
+		c.miss("a").store(bytes("x"), "W/\"1\"", now);
+		ResultCache.Cached e = c.get("a", now);
+		assertNotNull(e);
+		assertArrayEquals(bytes("x"), e.data);
+		assertEquals("W/\"1\"", e.etag);
+		assertNull(c.get("b", now));
+	}
+
+	@Test
+	public void expires() {
+		ResultCache c = new ResultCache(10*SECOND, 10);
+		long now = 1000*SECOND;
+		c.miss("a").store(bytes("x"), null, now);
+		assertNotNull(c.get("a", now + 10*SECOND - 1));
+		assertNull(c.get("a", now + 10*SECOND));
+		// expired entries are removed on lookup.
+		assertEquals(0, c.size());
+	}
+
+	@Test
+	public void expiresAcrossNanoTimeWrap() {
+		// System.nanoTime can be negative and wrap, expiry is compared by difference.
+		ResultCache c = new ResultCache(10*SECOND, 10);
+		long now = Long.MAX_VALUE - SECOND;
+		c.miss("a").store(bytes("x"), null, now);
+		assertNotNull(c.get("a", now + 5*SECOND));
+		assertNull(c.get("a", now + 10*SECOND));
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		ResultCache c = new ResultCache(10*SECOND, 2);
+		long now = 1000*SECOND;
+		c.miss("a").store(bytes("a"), null, now);
+		c.miss("b").store(bytes("b"), null, now);
+		// a is now more recently used than b.
+		assertNotNull(c.get("a", now));
+		c.miss("c").store(bytes("c"), null, now);
+		assertEquals(2, c.size());
+		assertNull(c.get("b", now));
+		assertNotNull(c.get("a", now));
+		assertNotNull(c.get("c", now));
+	}
+
+	@Test
+	public void clearDropsPendingStores() {
+		ResultCache c = new ResultCache(10*SECOND, 10);
+		long now = 1000*SECOND;
+		c.miss("a").store(bytes("a"), null, now);
+		ResultCache.Miss m = c.miss("b");
+		c.clear();
+		assertEquals(0, c.size());
+		// the call started before the clear, its result may be stale.
+		m.store(bytes("b"), null, now);
+		assertNull(c.get("b", now));
+		c.miss("b").store(bytes("b"), null, now);
+		assertNotNull(c.get("b", now));
+	}
+
+	@Test
+	public void key() {
+		String params = "{\"params\":[\"" + new String(new char[100*1000]).replace('\0', 'x') + "\"]}";
+		String k = ResultCache.key("f", params);
+		// a fixed size digest, not the request.
+		assertEquals(2 + 43, k.length());
+		assertEquals(k, ResultCache.key("f", params));
+		assertNotEquals(k, ResultCache.key("g", params));
+		assertNotEquals(ResultCache.key("f", "{\"params\":[1]}"), ResultCache.key("f", "{\"params\":[2]}"));
+	}
+}
@@ -0,0 +1,58 @@
+package nl.irias.sherpa;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SherpaClientKeyTest {
+	static String key(SherpaClientKey k, String header, String value) {
+		FakeHttp.Request r = new FakeHttp.Request("POST", "/f");
+		r.remoteAddr = "10.0.0.1";
+		if (header != null) {
+			r.header(header, value);
+		}
+		return k.key(r.proxy());
+	}
+
+	@Test
+	public void forwardedFor() {
+		SherpaClientKey k = SherpaClientKey.forwardedFor();
+		assertEquals("10.0.0.1", key(k, null, null));
+		assertEquals("192.0.2.1", key(k, "X-Forwarded-For", "192.0.2.1"));
+		// the proxy appends the address it saw, entries before it are from the client.
+		assertEquals("192.0.2.1", key(k, "X-Forwarded-For", "198.51.100.7, 192.0.2.1"));
+		assertEquals("192.0.2.1", key(k, "X-Forwarded-For", "1.2.3.4,5.6.7.8 , 192.0.2.1 "));
+		assertEquals("10.0.0.1", key(k, "X-Forwarded-For", ""));
+	}
+
+	@Test
+	public void forwardedForSpoofed() {
+		// a client that sends a new address each time still gets the key of its own address.
+		SherpaClientKey k = SherpaClientKey.forwardedFor();
+		for (int i = 0; i < 10; i++) {
+			assertEquals("192.0.2.1", key(k, "X-Forwarded-For", "203.0.113." + i + ", 192.0.2.1"));
+		}
+	}
+
+	@Test
+	public void forwardedForTrustedProxies() {
+		SherpaClientKey k = SherpaClientKey.forwardedFor(2);
+		// the outer proxy appended the client, the inner proxy the outer proxy.
+		assertEquals("192.0.2.1", key(k, "X-Forwarded-For", "203.0.113.9, 192.0.2.1, 10.1.1.1"));
+		// not through both proxies.
+		assertEquals("10.0.0.1", key(k, "X-Forwarded-For", "192.0.2.1"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void forwardedForNoProxies() {
+		SherpaClientKey.forwardedFor(0);
+	}
+
+	@Test
+	public void header() {
+		SherpaClientKey k = SherpaClientKey.header("X-Api-Token");
+		assertEquals("secret", key(k, "X-Api-Token", "secret"));
+		// leaving out the header doesn't escape the limit.
+		assertEquals("10.0.0.1", key(k, null, null));
+	}
+}
@@ -0,0 +1,84 @@
+package nl.irias.sherpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SherpaLatencyHistogramTest {
+	static final int SUB = SherpaLatencyHistogram.SUB_COUNT;
+
+	@Test
+	public void small() {
+		// below SUB_COUNT, every value has its own bucket.
+		for (int v = 0; v < SUB; v++) {
+			assertEquals(v, SherpaLatencyHistogram.bucket(v));
+			assertEquals(v, SherpaLatencyHistogram.bucketMax(v));
+		}
+		assertEquals(0, SherpaLatencyHistogram.bucket(-1));
+		assertEquals(0, SherpaLatencyHistogram.bucket(Long.MIN_VALUE));
+		assertEquals(SUB, SherpaLatencyHistogram.bucket(SUB));
+		assertEquals(2*SUB - 1, SherpaLatencyHistogram.bucket(2*SUB - 1));
+		// from here on, buckets are two values wide.
+		assertEquals(2*SUB, SherpaLatencyHistogram.bucket(2*SUB));
+		assertEquals(2*SUB, SherpaLatencyHistogram.bucket(2*SUB + 1));
+		assertEquals(2*SUB + 1, SherpaLatencyHistogram.bucket(2*SUB + 2));
+	}
+
+	@Test
+	public void powersOfTwo() {
+		for (int k = SherpaLatencyHistogram.SUB_BITS; k < 63; k++) {
+			long p = 1L << k;
+			int i = SherpaLatencyHistogram.bucket(p);
+			assertEquals("2^" + k, (k - SherpaLatencyHistogram.SUB_BITS + 1) * SUB, i);
+			// the value just below a power of two is the last of the previous bucket.
+			assertEquals("2^" + k + "-1", i - 1, SherpaLatencyHistogram.bucket(p - 1));
+			assertEquals("2^" + k + "-1", p - 1, SherpaLatencyHistogram.bucketMax(i - 1));
+		}
+	}
+
+	@Test
+	public void edges() {
+		// each bucket ends right before the next one starts.
+		for (int i = 0; i < SherpaLatencyHistogram.BUCKETS - 1; i++) {
+			long max = SherpaLatencyHistogram.bucketMax(i);
+			assertEquals("bucket " + i, i, SherpaLatencyHistogram.bucket(max));
+			assertEquals("bucket " + i, i + 1, SherpaLatencyHistogram.bucket(max + 1));
+			// the width of a bucket is at most 1/SUB_COUNT of its values.
+			long min = i == 0 ? 0 : SherpaLatencyHistogram.bucketMax(i - 1) + 1;
+			assertTrue("bucket " + i, max - min <= Math.max(0, min / SUB));
+		}
+	}
+
+	@Test
+	public void maximum() {
+		int last = SherpaLatencyHistogram.BUCKETS - 1;
+		assertEquals(last, SherpaLatencyHistogram.bucket(Long.MAX_VALUE));
+		assertEquals(Long.MAX_VALUE, SherpaLatencyHistogram.bucketMax(last));
+
+		SherpaLatencyHistogram h = new SherpaLatencyHistogram();
+		h.record(Long.MAX_VALUE);
+		h.record(-1);
+		h.record(1000);
+		assertEquals(3, h.count());
+		assertEquals(Long.MAX_VALUE, h.max());
+		assertEquals(Long.MAX_VALUE, h.percentile(100));
+		assertEquals(0, h.percentile(1));
+		assertEquals(2, h.countAtOrBelow(1000));
+		assertEquals(3, h.countAtOrBelow(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void percentile() {
+		SherpaLatencyHistogram h = new SherpaLatencyHistogram();
+		assertEquals(0, h.percentile(50));
+		for (long v = 1; v <= 1000; v++) {
+			h.record(v*1000);
+		}
+		// within the precision of the buckets, and never above the maximum recorded.
+		assertEquals(500*1000, h.percentile(50), 500*1000/SUB);
+		assertEquals(990*1000, h.percentile(99), 990*1000/SUB);
+		assertEquals(1000*1000, h.percentile(100));
+		assertEquals(1000*1000, h.percentile(200));
+	}
+}
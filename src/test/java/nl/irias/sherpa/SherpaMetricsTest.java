@@ -0,0 +1,98 @@
+package nl.irias.sherpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class SherpaMetricsTest {
+	@SherpaSection(title = "Metrics")
+	public static class Fns {
+		@SherpaFunction
+		public static int add(int a, int b) {
+			return a + b;
+		}
+	}
+
+	@SherpaSection(title = "Reserved")
+	public static class Reserved {
+		@SherpaFunction
+		public static String _metrics() {
+			return "mine";
+		}
+	}
+
+	@Test
+	public void format() {
+		SherpaMetrics m = new SherpaMetrics(Arrays.asList("add", "a\"b\\c\nd"), new SherpaServlet.DefaultCollector());
+		SherpaMetrics.Function f = m.functions.get("add");
+		f.called(false, false);
+		f.called(true, false);
+		f.called(true, true);
+		f.timed(2*1000*1000); // 2ms, in the 0.0025 bucket
+		f.timed(20L*1000*1000*1000); // above the largest bucket
+
+		String s = m.format();
+		assertTrue(s.endsWith("\n"));
+		assertTrue(s.contains("sherpa_function_calls_total{function=\"add\"} 3\n"));
+		assertTrue(s.contains("sherpa_function_user_errors_total{function=\"add\"} 1\n"));
+		assertTrue(s.contains("sherpa_function_server_errors_total{function=\"add\"} 1\n"));
+		assertTrue(s.contains("sherpa_function_duration_seconds_bucket{function=\"add\",le=\"0.001\"} 0\n"));
+		assertTrue(s.contains("sherpa_function_duration_seconds_bucket{function=\"add\",le=\"0.0025\"} 1\n"));
+		assertTrue(s.contains("sherpa_function_duration_seconds_bucket{function=\"add\",le=\"10.0\"} 1\n"));
+		assertTrue(s.contains("sherpa_function_duration_seconds_bucket{function=\"add\",le=\"+Inf\"} 2\n"));
+		assertTrue(s.contains("sherpa_function_duration_seconds_sum{function=\"add\"} 20.002\n"));
+		assertTrue(s.contains("sherpa_function_duration_seconds_count{function=\"add\"} 2\n"));
+
+		// label values escape backslash, double quote and newline.
+		assertTrue(s.contains("sherpa_function_calls_total{function=\"a\\\"b\\\\c\\nd\"} 0\n"));
+		assertTrue(s.contains("sherpa_function_duration_seconds_sum{function=\"a\\\"b\\\\c\\nd\"} 0.0\n"));
+
+		// each family has HELP and TYPE, in that order, before its samples.
+		Set<String> typed = new HashSet<>();
+		String help = null;
+		for (String line : s.split("\n")) {
+			if (line.startsWith("# HELP ")) {
+				help = line.split(" ")[2];
+				continue;
+			}
+			if (line.startsWith("# TYPE ")) {
+				String[] t = line.split(" ");
+				assertEquals(4, t.length);
+				assertEquals(help, t[2]);
+				assertTrue(t[3], t[3].equals("counter") || t[3].equals("gauge") || t[3].equals("histogram"));
+				typed.add(t[2]);
+				continue;
+			}
+			String name = line.split("[{ ]")[0];
+			String family = name.replaceFirst("_(bucket|sum|count)$", "");
+			assertTrue(line, typed.contains(name) || typed.contains(family));
+		}
+	}
+
+	@Test
+	public void endpoint() throws Exception {
+		SherpaOptions o = new SherpaOptions();
+		SherpaServlet s = new SherpaServlet("/test/", "test", "Test", "1.0", new Class<?>[]{Fns.class}, null, null, null, null, null, o);
+		// off by default.
+		FakeHttp.Response r = FakeHttp.call(s, new FakeHttp.Request("GET", "/_metrics"));
+		assertEquals(404, r.status);
+
+		o = new SherpaOptions();
+		o.metricsEndpoint = true;
+		s = new SherpaServlet("/test/", "test", "Test", "1.0", new Class<?>[]{Fns.class}, null, null, null, null, null, o);
+		FakeHttp.post(s, "/add", "{\"params\": [1, 2]}");
+		r = FakeHttp.call(s, new FakeHttp.Request("GET", "/_metrics"));
+		assertEquals(200, r.status);
+		assertTrue(r.body().contains("sherpa_function_calls_total{function=\"add\"} 1\n"));
+
+		// a function named _metrics takes precedence.
+		s = new SherpaServlet("/test/", "test", "Test", "1.0", new Class<?>[]{Reserved.class}, null, null, null, null, null, o);
+		r = FakeHttp.post(s, "/_metrics", "{\"params\": []}");
+		assertEquals("{\"result\":\"mine\",\"error\":null}", r.body());
+	}
+}
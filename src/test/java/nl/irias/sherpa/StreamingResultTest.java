@@ -0,0 +1,100 @@
+package nl.irias.sherpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class StreamingResultTest {
+	static final AtomicBoolean closed = new AtomicBoolean();
+
+	public static class Row {
+		public int id;
+		public String name;
+
+		Row(int id) {
+			this.id = id;
+			this.name = "row" + id;
+		}
+	}
+
+	public static class Bad {
+		public int getX() {
+			throw new IllegalStateException("getter");
+		}
+	}
+
+	@SherpaSection(title = "Streaming")
+	public static class Fns {
+		@SherpaFunction
+		public static Iterator<Row> rows(int n) {
+			return IntStream.range(0, n).mapToObj(Row::new).iterator();
+		}
+
+		@SherpaFunction
+		public static Stream<Integer> ints(int n) {
+			return IntStream.range(0, n).boxed().onClose(() -> closed.set(true));
+		}
+
+		@SherpaFunction
+		public static SherpaProducer<String> broken() {
+			return sink -> {
+				sink.accept("a");
+				sink.accept("b");
+				throw new SherpaUserException("midway");
+			};
+		}
+
+		@SherpaFunction
+		public static Stream<Object> badElement() {
+			return Stream.of(1, new Bad(), 3);
+		}
+	}
+
+	static FakeHttp.Response call(String fn, String params) throws Exception {
+		SherpaServlet s = new SherpaServlet("/test/", "test", "Test", "1.0", new Class<?>[]{Fns.class}, null, null, null, null, null, new SherpaOptions());
+		FakeHttp.Response r = FakeHttp.post(s, "/" + fn, "{\"params\": " + params + "}");
+		assertEquals(200, r.status);
+		return r;
+	}
+
+	@Test
+	public void stream() throws Exception {
+		closed.set(false);
+		assertEquals("{\"result\":[0,1,2,3,4],\"error\":null}", call("ints", "[5]").body());
+		assertTrue(closed.get());
+		assertEquals("{\"result\":[],\"error\":null}", call("ints", "[0]").body());
+		assertEquals("{\"result\":[0],\"error\":null}", call("ints", "[1]").body());
+	}
+
+	@Test
+	public void large() throws Exception {
+		JsonNode n = new ObjectMapper().readTree(call("rows", "[10000]").body());
+		assertTrue(n.get("error").isNull());
+		JsonNode l = n.get("result");
+		assertEquals(10000, l.size());
+		assertEquals("row9999", l.get(9999).get("name").asText());
+	}
+
+	@Test
+	public void failMidStream() throws Exception {
+		// elements sent before the failure are kept, the error follows.
+		assertEquals("{\"result\":[\"a\",\"b\"],\"error\":{\"code\":\"sherpaUserError\",\"message\":\"midway\"}}", call("broken", "[]").body());
+	}
+
+	@Test
+	public void failSerializing() throws Exception {
+		// nothing of the element that failed to serialize is sent.
+		JsonNode n = new ObjectMapper().readTree(call("badElement", "[]").body());
+		assertEquals("[1]", n.get("result").toString());
+		assertEquals("sherpaServerError", n.get("error").get("code").asText());
+	}
+}